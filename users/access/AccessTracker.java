@@ -0,0 +1,159 @@
+package com.trademarket.api.security.users.access;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Write-behind for accessed_at. Reads call {@link #touch} instead of updating the row; touches are kept in memory,
+ * one latest timestamp per row (a user read a thousand times between flushes is one update), and written every
+ * users.access.flush-interval as one UPDATE ... FROM UNNEST per table and BATCH_SIZE rows.
+ * A row is only written when its stored accessed_at is older, so a write that stamped it in the meantime wins and
+ * costs nothing. Touches that fail to flush are put back for the next round; a crash loses at most one interval.
+ * Flushes publish no invalidation: cached entities may show an accessed_at up to their TTL old.
+ */
+@Component
+public class AccessTracker {
+
+    /** the table whose accessed_at a touch moves and the column the touched id is matched against */
+    public enum Target {
+        USER("users", "id"),
+        USER_ROLES("user_roles", "user_id"),
+        USER_PERMISSIONS("user_permissions", "user_id");
+
+        private final String table;
+        private final String keyColumn;
+
+        Target(String table, String keyColumn) {
+            this.table = table;
+            this.keyColumn = keyColumn;
+        }
+    }
+
+    private static final int BATCH_SIZE = 1_000;
+    private static final Duration SHUTDOWN_FLUSH_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final Logger log = LoggerFactory.getLogger(AccessTracker.class);
+
+    private final DatabaseClient databaseClient;
+    private final Duration flushInterval;
+    private final Map<Target, ConcurrentHashMap<Long, Long>> pending = new EnumMap<>(Target.class); // id -> epoch millis
+    private final Map<Target, String> flushSql = new EnumMap<>(Target.class);
+
+    private final Counter flushed; // null without a registry
+    private Disposable flusher;
+
+    public AccessTracker(
+        DatabaseClient databaseClient,
+        @Value("${users.access.flush-interval:5s}") Duration flushInterval,
+        ObjectProvider<MeterRegistry> meterRegistry) {
+        this.databaseClient = databaseClient;
+        this.flushInterval = flushInterval;
+        for (Target target : Target.values()) {
+            pending.put(target, new ConcurrentHashMap<>());
+            flushSql.put(target, """
+                UPDATE %1$s t
+                SET accessed_at = to_timestamp(v.accessed_at / 1000.0)
+                FROM UNNEST(:ids::bigint[], :accessedAt::bigint[]) AS v(id, accessed_at)
+                WHERE t.%2$s = v.id
+                  AND (t.accessed_at IS NULL OR t.accessed_at < to_timestamp(v.accessed_at / 1000.0))
+                """.formatted(target.table, target.keyColumn));
+        }
+
+        MeterRegistry registry = meterRegistry.getIfAvailable();
+        this.flushed = registry == null ? null : Counter.builder("users.access.flushed")
+            .description("Rows whose accessed_at was written by the write-behind flush")
+            .register(registry);
+        if (registry != null) {
+            Gauge.builder("users.access.pending", pending, map -> map.values().stream().mapToInt(Map::size).sum())
+                .description("Touched rows waiting for the next accessed_at flush")
+                .register(registry);
+        }
+    }
+
+    public void touch(Target target, Long id) {
+        if (id == null) return;
+        pending.get(target).merge(id, System.currentTimeMillis(), Math::max);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        flusher = Flux.interval(flushInterval, flushInterval)
+            .onBackpressureDrop()
+            .concatMap(_ -> flush(), 1)
+            .subscribe();
+    }
+
+    /* last chance for what is still buffered; anything that doesn't make it in time is the accepted loss */
+    @PreDestroy
+    public void stop() {
+        if (flusher != null) flusher.dispose();
+        try {
+            flush().block(SHUTDOWN_FLUSH_TIMEOUT);
+        } catch (RuntimeException e) {
+            log.warn("Final accessed_at flush failed: {}", e.getMessage());
+        }
+    }
+
+    /** @return rows written */
+    public Mono<Long> flush() {
+        return Flux.fromArray(Target.values())
+            .concatMap(target -> Flux.fromIterable(drain(target))
+                .concatMap(batch -> write(target, batch)))
+            .reduce(0L, Long::sum);
+    }
+
+    /* takes each entry out only if it wasn't touched again meanwhile, a newer touch just stays for the next flush */
+    private List<Map<Long, Long>> drain(Target target) {
+        ConcurrentHashMap<Long, Long> buffer = pending.get(target);
+        List<Map<Long, Long>> batches = new ArrayList<>();
+        Map<Long, Long> batch = new HashMap<>();
+        for (Map.Entry<Long, Long> entry : buffer.entrySet()) {
+            if (!buffer.remove(entry.getKey(), entry.getValue())) continue;
+            batch.put(entry.getKey(), entry.getValue());
+            if (batch.size() == BATCH_SIZE) {
+                batches.add(batch);
+                batch = new HashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) batches.add(batch);
+        return batches;
+    }
+
+    private Mono<Long> write(Target target, Map<Long, Long> batch) {
+        return databaseClient.sql(flushSql.get(target))
+            .bind("ids", batch.keySet().toArray(Long[]::new))
+            .bind("accessedAt", batch.values().toArray(Long[]::new))
+            .fetch()
+            .rowsUpdated()
+            .doOnNext(rows -> {
+                if (flushed != null) flushed.increment(rows);
+            })
+            .onErrorResume(e -> {
+                log.warn("accessed_at flush of {} {} rows failed, retrying next round: {}", batch.size(), target.table, e.getMessage());
+                batch.forEach((id, accessedAt) -> pending.get(target).merge(id, accessedAt, Math::max));
+                return Mono.just(0L);
+            });
+    }
+}
@@ -1,21 +1,33 @@
 package com.trademarket.api.security.users.addresses.controller;
 
 import java.time.Instant;
+import java.util.Map;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
 
+import com.trademarket.api.exceptions.ValidationException;
 import com.trademarket.api.security.users.addresses.model.AddressEntity;
 import com.trademarket.api.security.users.addresses.repository.AddressRepository;
 import com.trademarket.api.security.users.addresses.service.AddressService;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.controller.Versions;
+import com.trademarket.api.security.users.exception.VersionConflictException;
+import com.trademarket.api.security.users.facets.model.Facets;
+import com.trademarket.api.security.users.facets.service.FacetService;
 import com.trademarket.api.security.users.repository.UserRepository;
 
 import reactor.core.publisher.Flux;
@@ -28,15 +40,20 @@ public class AddressController {
     private final AddressRepository addressRepository;
     private final UserRepository userRepository;
     private final AddressService addressService;
+    private final FacetService facetService;
+    private final InvalidationBus invalidationBus;
 
-    public AddressController(AddressRepository addressRepository, AddressService addressService, UserRepository userRepository) {
+    public AddressController(AddressRepository addressRepository, AddressService addressService, UserRepository userRepository, FacetService facetService, InvalidationBus invalidationBus) {
         this.addressRepository = addressRepository;
         this.addressService = addressService;
         this.userRepository = userRepository;
+        this.facetService = facetService;
+        this.invalidationBus = invalidationBus;
     }
 
+    /* the ETag is the address's version, for the If-Match of its next PATCH */
     @PostMapping
-    public Mono<AddressEntity> createAddress(@RequestBody AddressEntity addressEntity) {
+    public Mono<ResponseEntity<AddressEntity>> createAddress(@RequestBody AddressEntity addressEntity) {
         Instant now = Instant.now();
         // Check userId is provided
         if (addressEntity.getUserId() == null) return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "User ID must be provided"));
@@ -48,18 +65,21 @@ public class AddressController {
                     addressEntity.setCreatedAt(now);
                     addressEntity.setUpdatedAt(now);
                     addressEntity.setAccessedAt(now);
+                    addressEntity.setVersion(0L);
                     return addressService.saveAddress(addressEntity);
                 } else {
                     // UPDATE
                     return addressRepository.findById(addressEntity.getId())
                         .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Address not found with id: " + addressEntity.getId())))
-                        .flatMap(_ -> {
+                        .flatMap(existingAddress -> {
                             addressEntity.setUpdatedAt(now);
                             addressEntity.setAccessedAt(now);
+                            addressEntity.setVersion(existingAddress.getVersion() + 1);
                             return addressService.saveAddress(addressEntity);
                         });
                 }
-            });
+            })
+            .map(savedAddress -> ResponseEntity.ok().eTag(Versions.etag(savedAddress.getVersion())).body(savedAddress));
     }
 
     @GetMapping
@@ -69,9 +89,23 @@ public class AddressController {
         @RequestParam(required = false) String country,
         @RequestParam(required = false) String city,
         @RequestParam(required = false) String region,
-        @RequestParam(required = false) String street
+        @RequestParam(required = false) String street,
+        @RequestParam(defaultValue = "false") boolean fuzzy
     ) {
-        return addressService.getAll(cursor, limit, country, city, region, street);
+        return addressService.getAll(cursor, limit, country, city, region, street, fuzzy);
+    }
+
+    /* top-N country/region/city values (address counts) and owner roles (user counts) for the same filters */
+    @GetMapping("/facets")
+    public Mono<Facets> getAddressFacets(
+        @RequestParam(required = false) String country,
+        @RequestParam(required = false) String city,
+        @RequestParam(required = false) String region,
+        @RequestParam(required = false) String street,
+        @RequestParam(defaultValue = "false") boolean fuzzy,
+        @RequestParam(defaultValue = "10") int limit
+    ) {
+        return facetService.addressFacets(country, city, region, street, fuzzy, limit);
     }
 
     @GetMapping("/{id}")
@@ -81,12 +115,29 @@ public class AddressController {
 
     @GetMapping("/user/{userId}")
     public Flux<AddressEntity> getAddressesByUserId(@PathVariable Long userId) {
-        return addressRepository.findByUserId(userId);
+        return addressService.getByUserId(userId);
+    }
+
+    /* If-Match: "<version>" (or "version" in the body) makes it conditional, 409 if the address changed since */
+    @PatchMapping("/{id}")
+    public Mono<ResponseEntity<Object>> updateAddress(
+        @PathVariable Long id,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+        @RequestBody Map<String, Object> updates) {
+        Long version = Versions.expected(ifMatch, updates);
+        return addressService.updateAddress(id, version, updates)
+            .map(updatedAddress -> ResponseEntity.ok().eTag(Versions.etag(updatedAddress.getVersion())).body((Object) updatedAddress))
+            .onErrorResume(ValidationException.class, ex -> Mono.just(ResponseEntity.badRequest().body(ex.getErrors())))
+            .onErrorResume(VersionConflictException.class, ex -> Mono.just(ResponseEntity.status(HttpStatus.CONFLICT)
+                .eTag(Versions.etag(ex.getCurrentVersion()))
+                .body(ex.getMessage())))
+            .switchIfEmpty(Mono.just(ResponseEntity.status(HttpStatus.NOT_FOUND).body("Address not found with id: " + id)));
     }
 
     @DeleteMapping("/{id}")
     public Mono<Void> deleteAddress(@PathVariable Long id) {
-        return addressRepository.deleteById(id).then();
+        return addressRepository.deleteById(id)
+            .then(invalidationBus.publish(InvalidationEvent.Type.ADDRESS, id));
     }
 
 }
@@ -50,6 +50,8 @@ public class AddressEntity {
     private Instant updatedAt;
     private Instant accessedAt;
 
+    private Long version; //bumped by every conditional update, sent back as the ETag
+
     public AddressEntity() {}
 
     public AddressEntity(Long id, Long userId, String country, String city, String region, String street, String unitNumber, String zipCode, String type, String additionalInfo, Double latitude, Double longitude) {
@@ -112,6 +114,9 @@ public class AddressEntity {
     public Instant getAccessedAt() { return accessedAt; }
     public void setAccessedAt(Instant accessedAt) { this.accessedAt = accessedAt; }
 
+    public Long getVersion() { return version; }
+    public void setVersion(Long version) { this.version = version; }
+
     @Override
     public String toString() {
         return "Address{" +
@@ -130,6 +135,7 @@ public class AddressEntity {
                 ", createdAt=" + createdAt +
                 ", updatedAt=" + updatedAt +
                 ", accessedAt=" + accessedAt +
+                ", version=" + version +
                 '}';
     }
 }
@@ -0,0 +1,27 @@
+package com.trademarket.api.security.users.addresses.repository;
+
+/**
+ * How a country/region/city/street filter is matched against the addresses table.
+ * CONTAINS and FUZZY compare users_unaccent(column) so they are served by the trigram GIN indexes
+ * (see migrations/V20261017_02__addresses_trigram_filters.sql) and ignore case and accents.
+ */
+public enum AddressMatch {
+
+    /** plain equality, what GET /addresses does without fuzzy=true */
+    EXACT,
+
+    /** substring match, what the users listing has always done with ILIKE '%x%' */
+    CONTAINS,
+
+    /** substring match or trigram similarity, tolerates typos ("Nairbi" finds "Nairobi") */
+    FUZZY;
+
+    public String predicate(String column, String param) {
+        String contains = "users_unaccent(" + column + ") ILIKE '%' || users_unaccent(TRIM(:" + param + ")) || '%'";
+        return switch (this) {
+            case EXACT -> " " + column + " = :" + param + " ";
+            case CONTAINS -> " " + contains + " ";
+            case FUZZY -> " (" + contains + " OR users_unaccent(" + column + ") % users_unaccent(TRIM(:" + param + "))) ";
+        };
+    }
+}
@@ -1,17 +1,28 @@
 package com.trademarket.api.security.users.addresses.service;
 
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 
-import com.trademarket.api.security.generics.CustomRepository;
 import com.trademarket.api.security.generics.CustomValidation;
-import com.trademarket.api.security.generics.RowMapper;
 import com.trademarket.api.security.users.addresses.model.AddressEntity;
+import com.trademarket.api.security.users.addresses.repository.AddressMatch;
 import com.trademarket.api.security.users.addresses.repository.AddressRepository;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.cache.SingleFlight;
+import com.trademarket.api.security.users.mapping.ConditionalUpdate;
+import com.trademarket.api.security.users.mapping.CompiledRowMapper;
+import com.trademarket.api.security.users.mapping.RowMapperFactory;
+import com.trademarket.api.security.users.sql.SqlTemplateCache;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
@@ -19,80 +30,116 @@ import reactor.core.scheduler.Schedulers;
 @Service
 public class AddressService {
 
+    private static final Logger log = LoggerFactory.getLogger(AddressService.class);
+
     private final AddressRepository addressRepository;
     private final CustomValidation<AddressEntity> customValidation;
-    private final CustomRepository<AddressEntity, Long> customRepository;
     private final DatabaseClient databaseClient;
+    private final SqlTemplateCache sqlTemplates;
+    private final InvalidationBus invalidationBus;
+    private final SingleFlight<Long, List<AddressEntity>> byUserFlight;
+
+    CompiledRowMapper<AddressEntity> addressMapper = RowMapperFactory.of(AddressEntity.class);
 
-    RowMapper<AddressEntity> addressMapper = new RowMapper<>(AddressEntity.class);
+    ConditionalUpdate<AddressEntity> addressUpdate = ConditionalUpdate.of(AddressEntity.class, "addresses", "id")
+        .without("userId", "createdAt");
 
-    public AddressService(AddressRepository addressRepository, CustomValidation<AddressEntity> customValidation, CustomRepository<AddressEntity, Long> customRepository, DatabaseClient databaseClient) {
+    public AddressService(AddressRepository addressRepository, CustomValidation<AddressEntity> customValidation, DatabaseClient databaseClient, SqlTemplateCache sqlTemplates, InvalidationBus invalidationBus, ObjectProvider<MeterRegistry> meterRegistry) {
         this.addressRepository = addressRepository;
         this.customValidation = customValidation;
         this.databaseClient = databaseClient;
-        this.customRepository = customRepository;
+        this.sqlTemplates = sqlTemplates;
+        this.invalidationBus = invalidationBus;
+        this.byUserFlight = new SingleFlight<>("addresses.by_user", meterRegistry.getIfAvailable());
     }
 
     public Mono<AddressEntity> saveAddress(AddressEntity address) {
         return Mono.fromCallable(() -> {
-                    System.out.println("AddressService: Validating address fields");
+                    log.debug("Validating address fields");
                     customValidation.validateAll(address);
                     return address;
                 })
                 .subscribeOn(Schedulers.boundedElastic())
                 .flatMap(validatedAddress -> {
-                    System.out.println("AddressService: Persisting validated address to the database");
+                    log.debug("Persisting validated address");
                     return addressRepository.save(validatedAddress)
-                    .doOnNext(savedAddress -> System.out.println("AddressService: Address saved with ID: " + savedAddress.getId()));
+                    .doOnNext(savedAddress -> log.debug("Address saved with id {}", savedAddress.getId()))
+                    .flatMap(savedAddress -> invalidationBus.publish(InvalidationEvent.Type.ADDRESS, savedAddress.getId()).thenReturn(savedAddress));
                 });
     }
 
-    public Flux<AddressEntity> getAll(Integer cursor, Integer limit, String country, String city, String region, String street) {
+    /* concurrent requests for the same user's addresses share one query */
+    public Flux<AddressEntity> getByUserId(Long userId) {
+        return SingleFlight.executeMany(byUserFlight, userId, () -> addressRepository.findByUserId(userId), addressMapper::copy);
+    }
+
+    /* fuzzy: trigram substring/similarity match instead of equality, same indexes as the users listing filters */
+    public Flux<AddressEntity> getAll(Integer cursor, Integer limit, String country, String city, String region, String street, boolean fuzzy) {
+        AddressQueryShape shape = new AddressQueryShape(
+            country != null && !country.isBlank(),
+            city    != null && !city.isBlank(),
+            region  != null && !region.isBlank(),
+            street  != null && !street.isBlank(),
+            cursor  != null,
+            limit   != null,
+            fuzzy);
+        String sql = sqlTemplates.get(shape, () -> buildSql(shape));
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql);
+        if (shape.hasCountry()) spec = spec.bind("country", country);
+        if (shape.hasCity())    spec = spec.bind("city", city);
+        if (shape.hasRegion())  spec = spec.bind("region", region);
+        if (shape.hasStreet())  spec = spec.bind("street", street);
+        if (shape.hasCursor())  spec = spec.bind("cursor", cursor);
+        if (shape.hasLimit())   spec = spec.bind("limit", limit);
+
+        return spec
+            .map((row, _) -> addressMapper.map(row))
+            .all();
+    }
+
+    private String buildSql(AddressQueryShape shape) {
         StringBuilder sql = new StringBuilder("SELECT * FROM addresses");
 
         boolean hasWhere = false;
-        if (country != null && !country.isBlank()) {
-            sql.append(" WHERE country = :country");
+        if (shape.hasCountry()) {
+            sql.append(" WHERE").append(filter(shape, "country"));
             hasWhere = true;
         }
-        if (city != null && !city.isBlank()) {
+        if (shape.hasCity()) {
             sql.append(hasWhere ? " AND" : " WHERE")
-               .append(" city = :city");
+               .append(filter(shape, "city"));
             hasWhere = true;
         }
-        if (region != null && !region.isBlank()) {
+        if (shape.hasRegion()) {
             sql.append(hasWhere ? " AND" : " WHERE")
-               .append(" region = :region");
+               .append(filter(shape, "region"));
             hasWhere = true;
         }
-        if (street != null && !street.isBlank()) {
+        if (shape.hasStreet()) {
             sql.append(hasWhere ? " AND" : " WHERE")
-               .append(" street = :street");
+               .append(filter(shape, "street"));
             hasWhere = true;
         }
-        if (cursor != null) {
+        if (shape.hasCursor()) {
             sql.append(hasWhere ? " AND" : " WHERE")
                .append(" id > :cursor");
         }
 
         sql.append(" ORDER BY id");
-        if (limit != null) {
+        if (shape.hasLimit()) {
             sql.append(" LIMIT :limit");
         }
+        return sql.toString();
+    }
 
-        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
-        if (country != null && !country.isBlank()) spec = spec.bind("country", country);
-        if (city    != null && !city.isBlank()) spec = spec.bind("city", city);
-        if (region  != null && !region.isBlank()) spec = spec.bind("region", region);
-        if (street  != null && !street.isBlank()) spec = spec.bind("street", street);
-        if (cursor  != null) spec = spec.bind("cursor", cursor);
-        if (limit   != null) spec = spec.bind("limit", limit);
-
-        return spec
-            .map((row, _) -> addressMapper.map(row))
-            .all();
+    private String filter(AddressQueryShape shape, String column) {
+        return (shape.fuzzy() ? AddressMatch.FUZZY : AddressMatch.EXACT).predicate(column, column);
     }
 
+    private record AddressQueryShape(boolean hasCountry, boolean hasCity, boolean hasRegion, boolean hasStreet,
+                                     boolean hasCursor, boolean hasLimit, boolean fuzzy) {}
+
     /*private AddressEntity mapRowToAddressEntity(Row row) {
         AddressEntity a = new AddressEntity();
         a.setId(row.get("id", Long.class));
@@ -113,19 +160,17 @@ public class AddressService {
         return a;
     }*/
     
-    public Mono<Object> updateAddress(AddressEntity addressEntity, Map<String, Object> updates) {
+    /** empty when there is no such address; VersionConflictException if it changed since version (null: unconditional) */
+    public Mono<AddressEntity> updateAddress(Long id, Long version, Map<String, Object> updates) {
         updates.put("updatedAt", Instant.now());
         updates.put("accessedAt", Instant.now());
         return Mono.fromCallable(() -> {
-                customValidation.validate(addressEntity, updates);
-                return addressEntity;
+                customValidation.validate(new AddressEntity(), updates);
+                return updates;
             })
             .subscribeOn(Schedulers.boundedElastic())
-            .flatMap(validatedAddress -> {
-                Long id = validatedAddress.getId(); 
-                if (id == null) return Mono.error(new IllegalArgumentException("Address ID cannot be null for update"));
-                return customRepository.updateFields(id, updates, AddressEntity.class, validatedAddress);
-            });
+            .flatMap(validatedUpdates -> addressUpdate.execute(databaseClient, sqlTemplates, id, version, validatedUpdates))
+            .flatMap(updatedAddress -> invalidationBus.publish(InvalidationEvent.Type.ADDRESS, id).thenReturn(updatedAddress));
     }
     
 }
@@ -0,0 +1,152 @@
+package com.trademarket.api.security.users.authorities.catalog;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.springframework.stereotype.Component;
+
+import com.trademarket.api.security.roles.model.PermissionEntity;
+import com.trademarket.api.security.roles.model.RoleEntity;
+import com.trademarket.api.security.roles.repository.PermissionRepository;
+import com.trademarket.api.security.roles.repository.RoleRepository;
+import com.trademarket.api.security.users.authorities.exception.PermissionNotFoundException;
+import com.trademarket.api.security.users.authorities.exception.RoleNotFoundException;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.cache.InvalidationListener;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Every role and permission, indexed by id and by name, held as one immutable snapshot.
+ * A snapshot is dropped on ROLE/PERMISSION invalidations (the roles/permissions tables notify on change, see
+ * migrations/V20261017_03__authority_catalog_notify.sql) and is never served older than MAX_STALENESS,
+ * which bounds the damage of a missed notification. A reference the snapshot can't resolve triggers one reload
+ * (at most every MIN_RELOAD_INTERVAL) before it is reported as not found.
+ */
+@Component
+public class AuthorityCatalog implements InvalidationListener {
+
+    private static final Duration MAX_STALENESS = Duration.ofMinutes(5);
+    private static final Duration MIN_RELOAD_INTERVAL = Duration.ofSeconds(1);
+
+    private final RoleRepository roleRepository;
+    private final PermissionRepository permissionRepository;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicReference<Mono<Snapshot>> loading = new AtomicReference<>();
+
+    public AuthorityCatalog(RoleRepository roleRepository, PermissionRepository permissionRepository) {
+        this.roleRepository = roleRepository;
+        this.permissionRepository = permissionRepository;
+    }
+
+    public Mono<Snapshot> current() {
+        Snapshot current = snapshot.get();
+        if (current != null && current.generation() == generation.get()
+                && current.loadedAt().plus(MAX_STALENESS).isAfter(Instant.now())) {
+            return Mono.just(current);
+        }
+        return reload();
+    }
+
+    /* a snapshot that knows every requested reference, unless they really don't exist */
+    public Mono<Snapshot> resolving(Collection<RoleEntity> roles, Collection<PermissionEntity> permissions) {
+        return current().flatMap(current -> current.resolvesAll(roles, permissions)
+                || current.loadedAt().plus(MIN_RELOAD_INTERVAL).isAfter(Instant.now())
+            ? Mono.just(current)
+            : reload());
+    }
+
+    @Override
+    public void onInvalidation(InvalidationEvent event) {
+        if (event.type() == InvalidationEvent.Type.ROLE || event.type() == InvalidationEvent.Type.PERMISSION) onFlush();
+    }
+
+    @Override
+    public void onFlush() {
+        generation.incrementAndGet();
+        loading.set(null); // a load already running may have read the old rows
+    }
+
+    private Mono<Snapshot> reload() {
+        Mono<Snapshot> inFlight = loading.get();
+        if (inFlight != null) return inFlight;
+        long loadGeneration = generation.get();
+        Mono<Snapshot> load = Mono.zip(roleRepository.findAll().collectList(), permissionRepository.findAll().collectList())
+            .map(tuple -> Snapshot.of(tuple.getT1(), tuple.getT2(), loadGeneration))
+            // a load that started before an invalidation must not replace a newer snapshot
+            .doOnNext(loaded -> snapshot.accumulateAndGet(loaded,
+                (previous, next) -> previous == null || next.generation() >= previous.generation() ? next : previous))
+            .doFinally(_ -> loading.set(null))
+            .cache();
+        return loading.compareAndSet(null, load) ? load : reload();
+    }
+
+    public record Snapshot(Map<Integer, RoleEntity> rolesById, Map<String, RoleEntity> rolesByName,
+                           Map<Integer, PermissionEntity> permissionsById, Map<String, PermissionEntity> permissionsByName,
+                           long generation, Instant loadedAt) {
+
+        static Snapshot of(List<RoleEntity> roles, List<PermissionEntity> permissions, long generation) {
+            Map<Integer, RoleEntity> rolesById = new HashMap<>();
+            Map<String, RoleEntity> rolesByName = new HashMap<>();
+            for (RoleEntity role : roles) {
+                rolesById.put(role.getId(), role);
+                if (role.getName() != null) rolesByName.put(role.getName(), role);
+            }
+            Map<Integer, PermissionEntity> permissionsById = new HashMap<>();
+            Map<String, PermissionEntity> permissionsByName = new HashMap<>();
+            for (PermissionEntity permission : permissions) {
+                permissionsById.put(permission.getId(), permission);
+                if (permission.getName() != null) permissionsByName.put(permission.getName(), permission);
+            }
+            return new Snapshot(Map.copyOf(rolesById), Map.copyOf(rolesByName),
+                Map.copyOf(permissionsById), Map.copyOf(permissionsByName), generation, Instant.now());
+        }
+
+        /** the catalog row a {id} or {name} reference points to, id first */
+        public RoleEntity role(RoleEntity reference) {
+            if (reference.getId() != null) {
+                RoleEntity role = rolesById.get(reference.getId());
+                if (role == null) throw new RoleNotFoundException("Role with id " + reference.getId() + " not found");
+                return role;
+            }
+            if (reference.getName() != null) {
+                RoleEntity role = rolesByName.get(reference.getName());
+                if (role == null) throw new RoleNotFoundException("Role with name " + reference.getName() + " not found");
+                return role;
+            }
+            throw new RoleNotFoundException("Role not found");
+        }
+
+        public PermissionEntity permission(PermissionEntity reference) {
+            if (reference.getId() != null) {
+                PermissionEntity permission = permissionsById.get(reference.getId());
+                if (permission == null) throw new PermissionNotFoundException("Permission with id " + reference.getId() + " not found");
+                return permission;
+            }
+            if (reference.getName() != null) {
+                PermissionEntity permission = permissionsByName.get(reference.getName());
+                if (permission == null) throw new PermissionNotFoundException("Permission with name " + reference.getName() + " not found");
+                return permission;
+            }
+            throw new PermissionNotFoundException("Permission not found");
+        }
+
+        boolean resolvesAll(Collection<RoleEntity> roles, Collection<PermissionEntity> permissions) {
+            for (RoleEntity role : roles) {
+                if (role.getId() != null ? !rolesById.containsKey(role.getId()) : role.getName() != null && !rolesByName.containsKey(role.getName())) return false;
+            }
+            for (PermissionEntity permission : permissions) {
+                if (permission.getId() != null ? !permissionsById.containsKey(permission.getId()) : permission.getName() != null && !permissionsByName.containsKey(permission.getName())) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.trademarket.api.security.users.authorities.catalog;
+
+import java.util.BitSet;
+
+/**
+ * A user's directly assigned roles and permissions as bitsets indexed by catalog id (roles.id / permissions.id
+ * are small serials, so a user's whole set fits in a few words). Membership checks are a single bit test.
+ * Never mutated after construction.
+ */
+public final class EffectiveAuthorities {
+
+    private final BitSet roles;
+    private final BitSet permissions;
+
+    EffectiveAuthorities(BitSet roles, BitSet permissions) {
+        this.roles = roles;
+        this.permissions = permissions;
+    }
+
+    public boolean hasRole(Integer roleId) {
+        return roleId != null && roleId >= 0 && roles.get(roleId);
+    }
+
+    public boolean hasPermission(Integer permissionId) {
+        return permissionId != null && permissionId >= 0 && permissions.get(permissionId);
+    }
+
+    public int roleCount() { return roles.cardinality(); }
+    public int permissionCount() { return permissions.cardinality(); }
+}
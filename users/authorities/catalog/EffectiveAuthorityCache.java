@@ -0,0 +1,102 @@
+package com.trademarket.api.security.users.authorities.catalog;
+
+import java.time.Duration;
+import java.util.BitSet;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.trademarket.api.security.roles.model.PermissionEntity;
+import com.trademarket.api.security.roles.model.RoleEntity;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.cache.InvalidationListener;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import reactor.core.publisher.Mono;
+
+/**
+ * Per-user {@link EffectiveAuthorities}, loaded with one query over user_roles and user_permissions and then
+ * kept until an assignment of that user changes (USER_ROLE / USER_PERMISSION events carry the user id).
+ * Catalog changes can cascade into assignments, so ROLE / PERMISSION events drop everything.
+ */
+@Component
+public class EffectiveAuthorityCache implements InvalidationListener {
+
+    private static final String ASSIGNMENTS_SQL = """
+            SELECT 'R' AS kind, role_id AS authority_id FROM user_roles WHERE user_id = :userId
+            UNION ALL
+            SELECT 'P' AS kind, permission_id AS authority_id FROM user_permissions WHERE user_id = :userId
+            """;
+
+    private final DatabaseClient databaseClient;
+    private final AuthorityCatalog authorityCatalog;
+
+    private final AsyncLoadingCache<Long, EffectiveAuthorities> cache;
+
+    public EffectiveAuthorityCache(DatabaseClient databaseClient, AuthorityCatalog authorityCatalog, ObjectProvider<MeterRegistry> meterRegistry) {
+        this.databaseClient = databaseClient;
+        this.authorityCatalog = authorityCatalog;
+        this.cache = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(Duration.ofMinutes(10))
+            .recordStats()
+            .buildAsync((userId, _) -> load(userId).toFuture());
+        meterRegistry.ifAvailable(registry -> CaffeineCacheMetrics.monitor(registry, cache, "users.effective_authorities"));
+    }
+
+    public Mono<EffectiveAuthorities> get(Long userId) {
+        return Mono.fromFuture(() -> cache.get(userId), true);
+    }
+
+    /**
+     * role / permission are catalog names, either may be null but not both; granted only if every given one is held.
+     * Answered from memory once the user's bitsets are cached.
+     */
+    public Mono<Boolean> check(Long userId, String role, String permission) {
+        return Mono.zip(get(userId), authorityCatalog.current(), (authorities, catalog) -> {
+            if (role != null) {
+                RoleEntity roleEntity = catalog.rolesByName().get(role);
+                if (roleEntity == null || !authorities.hasRole(roleEntity.getId())) return false;
+            }
+            if (permission != null) {
+                PermissionEntity permissionEntity = catalog.permissionsByName().get(permission);
+                if (permissionEntity == null || !authorities.hasPermission(permissionEntity.getId())) return false;
+            }
+            return true;
+        });
+    }
+
+    @Override
+    public void onInvalidation(InvalidationEvent event) {
+        switch (event.type()) {
+            case USER, USER_ROLE, USER_PERMISSION -> {
+                if (event.isAll()) cache.synchronous().invalidateAll();
+                else cache.synchronous().invalidate(event.id());
+            }
+            case ROLE, PERMISSION -> cache.synchronous().invalidateAll();
+            default -> { }
+        }
+    }
+
+    @Override
+    public void onFlush() {
+        cache.synchronous().invalidateAll();
+    }
+
+    private Mono<EffectiveAuthorities> load(Long userId) {
+        return databaseClient.sql(ASSIGNMENTS_SQL)
+            .bind("userId", userId)
+            .map((row, _) -> new Assignment("R".equals(row.get("kind", String.class)), row.get("authority_id", Integer.class)))
+            .all()
+            .collect(() -> new BitSet[] { new BitSet(), new BitSet() }, (bits, assignment) -> {
+                if (assignment.authorityId() != null) bits[assignment.role() ? 0 : 1].set(assignment.authorityId());
+            })
+            .map(bits -> new EffectiveAuthorities(bits[0], bits[1]));
+    }
+
+    private record Assignment(boolean role, Integer authorityId) {}
+}
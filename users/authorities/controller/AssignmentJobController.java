@@ -0,0 +1,47 @@
+package com.trademarket.api.security.users.authorities.controller;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.trademarket.api.security.users.authorities.model.AssignmentJob;
+import com.trademarket.api.security.users.authorities.service.AssignmentJobService;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/** status and cancellation of the jobs started by /users/roles|permissions/assign_all and unassign_all */
+@RestController
+@RequestMapping("/users/assignment_jobs")
+public class AssignmentJobController {
+
+    private final AssignmentJobService assignmentJobService;
+
+    public AssignmentJobController(AssignmentJobService assignmentJobService) {
+        this.assignmentJobService = assignmentJobService;
+    }
+
+    @GetMapping("/{id}")
+    public Mono<AssignmentJob> getJob(@PathVariable Long id) {
+        return assignmentJobService.get(id)
+            .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Assignment job " + id + " not found")));
+    }
+
+    /** newest first */
+    @GetMapping
+    public Flux<AssignmentJob> getRecentJobs(@RequestParam(defaultValue = "20") int limit) {
+        return assignmentJobService.recent(limit);
+    }
+
+    /** a running job stops after its current chunk; what was done so far stays done */
+    @PostMapping("/{id}/cancel")
+    public Mono<AssignmentJob> cancelJob(@PathVariable Long id) {
+        return assignmentJobService.cancel(id)
+            .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "Assignment job " + id + " not found")));
+    }
+}
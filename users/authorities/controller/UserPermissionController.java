@@ -1,10 +1,13 @@
 // src/main/java/com/trademarket/tzm/users/authorities/controller/UserPermissionController.java
 package com.trademarket.api.security.users.authorities.controller;
 
+import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -13,9 +16,12 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.trademarket.api.security.roles.model.PermissionEntity;
+import com.trademarket.api.security.users.authorities.model.AssignmentJob;
 import com.trademarket.api.security.users.authorities.model.UserPermissionEntity;
+import com.trademarket.api.security.users.authorities.service.AssignmentJobService;
 import com.trademarket.api.security.users.authorities.service.UserPermissionService;
 
 import reactor.core.publisher.Flux;
@@ -26,9 +32,11 @@ import reactor.core.publisher.Mono;
 public class UserPermissionController {
 
     private final UserPermissionService userPermissionService;
+    private final AssignmentJobService assignmentJobService;
 
-    public UserPermissionController(UserPermissionService userPermissionService) {
+    public UserPermissionController(UserPermissionService userPermissionService, AssignmentJobService assignmentJobService) {
         this.userPermissionService = userPermissionService;
+        this.assignmentJobService = assignmentJobService;
     }
 
     /** ASSIGN specific users → many at once */
@@ -37,10 +45,10 @@ public class UserPermissionController {
         return userPermissionService.addPermissionsToSpecificUsers(userPermissionsMap);
     }
 
-    /** ASSIGN to all users → list of perm‑IDs */
+    /** ASSIGN to all users → list of perm‑IDs, 202 with the background job */
     @PostMapping("/assign_all")
-    public Flux<UserPermissionEntity> assignToAll(@RequestBody List<Integer> permissionIds) {
-        return userPermissionService.addPermissionsToAllUsers(permissionIds);
+    public Mono<ResponseEntity<AssignmentJob>> assignToAll(@RequestBody List<Integer> permissionIds) {
+        return accepted(assignmentJobService.submit(AssignmentJob.Kind.ASSIGN_PERMISSIONS, permissionIds));
     }
 
     /** READ all assignments */
@@ -52,6 +60,12 @@ public class UserPermissionController {
         return userPermissionService.getAllUserPermissions(cursor, limit);
     }
 
+    /** STREAM all assignments → NDJSON / SSE */
+    @GetMapping(value = "/permissions", produces = { MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE })
+    public Flux<UserPermissionEntity> streamAllAssignments() {
+        return userPermissionService.streamAllUserPermissions();
+    }
+
     /** READ by user */
     @GetMapping(params="userId")
     public Flux<UserPermissionEntity> getByUser(@RequestParam Long userId) {
@@ -66,11 +80,19 @@ public class UserPermissionController {
                 .then(Mono.just(ResponseEntity.ok().<Void>build()));
     }
 
-    /** UNASSIGN from all users (by perm‑IDs) */
+    /** UNASSIGN from all users (by perm‑IDs), 202 with the background job */
     @DeleteMapping("/unassign_all")
-    public Mono<ResponseEntity<String>> unassignAll(
+    public Mono<ResponseEntity<AssignmentJob>> unassignAll(
             @RequestBody List<Integer> permissionIds) {
-        return userPermissionService.removeUserPermissionsFromAllUsers(permissionIds)
-                .map(ResponseEntity::ok);
+        return accepted(assignmentJobService.submit(AssignmentJob.Kind.UNASSIGN_PERMISSIONS, permissionIds));
+    }
+
+    private static Mono<ResponseEntity<AssignmentJob>> accepted(Mono<AssignmentJob> job) {
+        return job
+            .map(submitted -> ResponseEntity.accepted()
+                .location(URI.create("/users/assignment_jobs/" + submitted.getId()))
+                .body(submitted))
+            .onErrorMap(IllegalArgumentException.class,
+                ex -> new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex));
     }
 }
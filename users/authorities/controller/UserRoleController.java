@@ -1,9 +1,12 @@
 package com.trademarket.api.security.users.authorities.controller;
 
+import java.net.URI;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -12,9 +15,12 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 
 import com.trademarket.api.security.roles.model.RoleEntity;
+import com.trademarket.api.security.users.authorities.model.AssignmentJob;
 import com.trademarket.api.security.users.authorities.model.UserRoleEntity;
+import com.trademarket.api.security.users.authorities.service.AssignmentJobService;
 import com.trademarket.api.security.users.authorities.service.UserRoleService;
 
 import reactor.core.publisher.Flux;
@@ -25,9 +31,11 @@ import reactor.core.publisher.Mono;
 public class UserRoleController {
 
     private final UserRoleService userRoleService;
+    private final AssignmentJobService assignmentJobService;
 
-    public UserRoleController(UserRoleService userRoleService) {
+    public UserRoleController(UserRoleService userRoleService, AssignmentJobService assignmentJobService) {
         this.userRoleService = userRoleService;
+        this.assignmentJobService = assignmentJobService;
     }
 
     @PostMapping("/assign_roles")
@@ -35,10 +43,11 @@ public class UserRoleController {
         return userRoleService.addRolesToSpecificUsers(usersRolesMap);
     }
 
-    /*@PostMapping("/assign_all")
-    public Flux<UserRoleEntity> assignToAll(@RequestBody List<Integer> roleIds) {
-        return userRoleService.addRolesToAllUsers(roleIds);
-    }*/
+    /** 202 with the background job, follow its Location for progress */
+    @PostMapping("/assign_all")
+    public Mono<ResponseEntity<AssignmentJob>> assignToAll(@RequestBody List<Integer> roleIds) {
+        return accepted(assignmentJobService.submit(AssignmentJob.Kind.ASSIGN_ROLES, roleIds));
+    }
 
     @GetMapping
     public Flux<UserRoleEntity> getAllAssignments(
@@ -48,6 +57,11 @@ public class UserRoleController {
         return userRoleService.getAllUserRoles(cursor, limit);
     }
 
+    @GetMapping(produces = { MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE })
+    public Flux<UserRoleEntity> streamAllAssignments() {
+        return userRoleService.streamAllUserRoles();
+    }
+
     @GetMapping(params="userId")
     public Flux<UserRoleEntity> getByUser(@RequestParam Long userId) {
         return userRoleService.getUserRoles(userId);
@@ -59,9 +73,18 @@ public class UserRoleController {
                 .then(Mono.just(ResponseEntity.ok().<Void>build()));
     }
 
+    /** 202 with the background job, follow its Location for progress */
     @DeleteMapping("/unassign_all")
-    public Mono<ResponseEntity<String>> unassignAll(@RequestBody List<Integer> roleIds) {
-        return userRoleService.removeUserRolesFromAllUsers(roleIds)
-                .map(ResponseEntity::ok);
+    public Mono<ResponseEntity<AssignmentJob>> unassignAll(@RequestBody List<Integer> roleIds) {
+        return accepted(assignmentJobService.submit(AssignmentJob.Kind.UNASSIGN_ROLES, roleIds));
+    }
+
+    private static Mono<ResponseEntity<AssignmentJob>> accepted(Mono<AssignmentJob> job) {
+        return job
+            .map(submitted -> ResponseEntity.accepted()
+                .location(URI.create("/users/assignment_jobs/" + submitted.getId()))
+                .body(submitted))
+            .onErrorMap(IllegalArgumentException.class,
+                ex -> new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex));
     }
 }
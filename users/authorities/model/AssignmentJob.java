@@ -0,0 +1,116 @@
+package com.trademarket.api.security.users.authorities.model;
+
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.relational.core.mapping.Table;
+
+/**
+ * A background assign_all / unassign_all run, see AssignmentJobService.
+ * Progress is processedUsers out of roughly totalUsers (counted at submit, users created meanwhile are included too).
+ */
+@Table("assignment_jobs")
+public class AssignmentJob {
+
+    public enum Kind {
+        ASSIGN_ROLES("user_roles", "role_id", "roles", true),
+        UNASSIGN_ROLES("user_roles", "role_id", "roles", false),
+        ASSIGN_PERMISSIONS("user_permissions", "permission_id", "permissions", true),
+        UNASSIGN_PERMISSIONS("user_permissions", "permission_id", "permissions", false);
+
+        private final String table;
+        private final String column;
+        private final String catalogTable;
+        private final boolean assign;
+
+        Kind(String table, String column, String catalogTable, boolean assign) {
+            this.table = table;
+            this.column = column;
+            this.catalogTable = catalogTable;
+            this.assign = assign;
+        }
+
+        public String table() { return table; }
+        public String column() { return column; }
+        public String catalogTable() { return catalogTable; }
+        public boolean isAssign() { return assign; }
+        public boolean isRoles() { return table.equals("user_roles"); }
+    }
+
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, CANCELLED, FAILED
+    }
+
+    @Id
+    private Long id;
+
+    private Kind kind;
+
+    @Transient // INT[] column, mapped by hand
+    private List<Integer> authorityIds;
+
+    private Status status;
+    private Long lastUserId;
+    private Long totalUsers;
+    private Long processedUsers;
+    private Long affectedRows;
+    private String error;
+    private String owner;
+    private Instant heartbeatAt;
+    private Instant createdAt;
+    private Instant updatedAt;
+    private Instant finishedAt;
+
+    public AssignmentJob() {}
+
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public Kind getKind() { return kind; }
+    public void setKind(Kind kind) { this.kind = kind; }
+
+    public List<Integer> getAuthorityIds() { return authorityIds; }
+    public void setAuthorityIds(List<Integer> authorityIds) { this.authorityIds = authorityIds; }
+
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+
+    public Long getLastUserId() { return lastUserId; }
+    public void setLastUserId(Long lastUserId) { this.lastUserId = lastUserId; }
+
+    public Long getTotalUsers() { return totalUsers; }
+    public void setTotalUsers(Long totalUsers) { this.totalUsers = totalUsers; }
+
+    public Long getProcessedUsers() { return processedUsers; }
+    public void setProcessedUsers(Long processedUsers) { this.processedUsers = processedUsers; }
+
+    public Long getAffectedRows() { return affectedRows; }
+    public void setAffectedRows(Long affectedRows) { this.affectedRows = affectedRows; }
+
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+
+    public String getOwner() { return owner; }
+    public void setOwner(String owner) { this.owner = owner; }
+
+    public Instant getHeartbeatAt() { return heartbeatAt; }
+    public void setHeartbeatAt(Instant heartbeatAt) { this.heartbeatAt = heartbeatAt; }
+
+    public Instant getCreatedAt() { return createdAt; }
+    public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
+
+    public Instant getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(Instant updatedAt) { this.updatedAt = updatedAt; }
+
+    public Instant getFinishedAt() { return finishedAt; }
+    public void setFinishedAt(Instant finishedAt) { this.finishedAt = finishedAt; }
+
+    /** 0..100, capped since users created during the run count as processed too */
+    public Double getProgress() {
+        if (status == Status.COMPLETED) return 100.0;
+        if (totalUsers == null || totalUsers == 0 || processedUsers == null) return 0.0;
+        return Math.min(100.0, processedUsers * 100.0 / totalUsers);
+    }
+}
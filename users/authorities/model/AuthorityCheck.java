@@ -0,0 +1,4 @@
+package com.trademarket.api.security.users.authorities.model;
+
+/** Result of GET /users/{id}/authorities/check, echoes what was asked */
+public record AuthorityCheck(Long userId, String role, String permission, boolean granted) {}
@@ -0,0 +1,255 @@
+package com.trademarket.api.security.users.authorities.service;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+
+import com.trademarket.api.security.users.authorities.catalog.AuthorityCatalog;
+import com.trademarket.api.security.users.authorities.model.AssignmentJob;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.mapping.CompiledRowMapper;
+import com.trademarket.api.security.users.mapping.RowMapperFactory;
+
+import io.r2dbc.spi.Row;
+import jakarta.annotation.PreDestroy;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/**
+ * assign_all / unassign_all for roles and permissions as background jobs instead of one request held open for hours.
+ *
+ * A job walks the users table in id order, CHUNK_SIZE users per statement. Each statement does the chunk's
+ * set-based INSERT ... ON CONFLICT DO NOTHING (or DELETE) and moves the job's last_user_id checkpoint in the same
+ * transaction, so a job picked up again after a restart continues from the last committed chunk, and redoing a chunk
+ * is harmless anyway. Cancelling flips the status; the next chunk statement then matches nothing and the run stops.
+ *
+ * Every node polls for PENDING jobs and for RUNNING ones whose owner stopped heart-beating (a node that died mid-run),
+ * claims one with FOR UPDATE SKIP LOCKED and runs it to the end, one job at a time per node.
+ * Caches are invalidated once per run, when it stops.
+ */
+@Service
+public class AssignmentJobService {
+
+    private static final int CHUNK_SIZE = 1_000;
+    private static final Duration POLL_INTERVAL = Duration.ofSeconds(5);
+    private static final Duration STALE_AFTER = Duration.ofMinutes(1);
+
+    private static final String SUBMIT_SQL = """
+            INSERT INTO assignment_jobs (kind, authority_ids, total_users)
+            VALUES (:kind, :authorityIds, (SELECT GREATEST(reltuples, 0)::bigint FROM pg_class WHERE oid = 'users'::regclass))
+            RETURNING *
+            """;
+
+    private static final String CLAIM_SQL = """
+            UPDATE assignment_jobs
+            SET status = 'RUNNING', owner = :owner, heartbeat_at = now(), updated_at = now()
+            WHERE id = (
+                SELECT id FROM assignment_jobs
+                WHERE status = 'PENDING'
+                   OR (status = 'RUNNING' AND heartbeat_at < now() - make_interval(secs => :staleSeconds))
+                ORDER BY id
+                LIMIT 1
+                FOR UPDATE SKIP LOCKED)
+            RETURNING *
+            """;
+
+    private static final String CANCEL_SQL = """
+            UPDATE assignment_jobs
+            SET status = 'CANCELLED', finished_at = now(), updated_at = now()
+            WHERE id = :id AND status IN ('PENDING', 'RUNNING')
+            """;
+
+    private static final String FAIL_SQL = """
+            UPDATE assignment_jobs
+            SET status = 'FAILED', error = :error, finished_at = now(), updated_at = now()
+            WHERE id = :id AND owner = :owner AND status = 'RUNNING'
+            """;
+
+    private static final Logger log = LoggerFactory.getLogger(AssignmentJobService.class);
+
+    private final DatabaseClient databaseClient;
+    private final InvalidationBus invalidationBus;
+    private final AuthorityCatalog authorityCatalog;
+    private final Map<AssignmentJob.Kind, String> chunkSql = new EnumMap<>(AssignmentJob.Kind.class);
+    private final String owner = UUID.randomUUID().toString().substring(0, 8);
+    private final Sinks.Many<Long> wakeUps = Sinks.many().multicast().directBestEffort();
+
+    private Disposable runner;
+
+    CompiledRowMapper<AssignmentJob> jobMapper = RowMapperFactory.of(AssignmentJob.class);
+
+    public AssignmentJobService(DatabaseClient databaseClient, InvalidationBus invalidationBus, AuthorityCatalog authorityCatalog) {
+        this.databaseClient = databaseClient;
+        this.invalidationBus = invalidationBus;
+        this.authorityCatalog = authorityCatalog;
+        for (AssignmentJob.Kind kind : AssignmentJob.Kind.values()) chunkSql.put(kind, buildChunkSql(kind));
+    }
+
+    /** assign jobs only keep ids the catalog knows; an unassign may name ids that no longer exist */
+    public Mono<AssignmentJob> submit(AssignmentJob.Kind kind, List<Integer> authorityIds) {
+        Mono<List<Integer>> ids = !kind.isAssign()
+            ? Mono.just(authorityIds.stream().distinct().toList())
+            : authorityCatalog.current().map(catalog -> authorityIds.stream()
+                .distinct()
+                .filter(id -> {
+                    boolean known = kind.isRoles() ? catalog.rolesById().containsKey(id) : catalog.permissionsById().containsKey(id);
+                    if (!known) log.info("Skipping missing {} id {}", kind.catalogTable(), id);
+                    return known;
+                })
+                .toList());
+        return ids
+            .flatMap(valid -> valid.isEmpty()
+                ? Mono.error(new IllegalArgumentException("No known " + kind.catalogTable() + " ids given"))
+                : databaseClient.sql(SUBMIT_SQL)
+                    .bind("kind", kind.name())
+                    .bind("authorityIds", valid.toArray(Integer[]::new))
+                    .map((row, _) -> map(row))
+                    .one())
+            .doOnNext(_ -> wakeUps.tryEmitNext(System.nanoTime()));
+    }
+
+    public Mono<AssignmentJob> get(Long id) {
+        return databaseClient.sql("SELECT * FROM assignment_jobs WHERE id = :id")
+            .bind("id", id)
+            .map((row, _) -> map(row))
+            .one();
+    }
+
+    public Flux<AssignmentJob> recent(int limit) {
+        return databaseClient.sql("SELECT * FROM assignment_jobs ORDER BY id DESC LIMIT :limit")
+            .bind("limit", Math.max(1, Math.min(limit, 100)))
+            .map((row, _) -> map(row))
+            .all();
+    }
+
+    /** @return the job as it is now, CANCELLED unless it had already finished; empty if there is no such job */
+    public Mono<AssignmentJob> cancel(Long id) {
+        return databaseClient.sql(CANCEL_SQL)
+            .bind("id", id)
+            .fetch()
+            .rowsUpdated()
+            .then(get(id));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        runner = Flux.merge(Flux.interval(Duration.ZERO, POLL_INTERVAL), wakeUps.asFlux())
+            .onBackpressureDrop()
+            .concatMap(_ -> claimAndRun()
+                .onErrorResume(e -> {
+                    log.warn("Assignment job poll failed: {}", e.getMessage());
+                    return Mono.empty();
+                }), 1)
+            .subscribe();
+    }
+
+    @PreDestroy
+    public void stop() {
+        // a job interrupted here stays RUNNING and is taken over once its heartbeat is STALE_AFTER old
+        if (runner != null) runner.dispose();
+    }
+
+    /* keeps claiming until nothing is runnable, so a backlog doesn't wait a poll interval per job */
+    private Mono<Void> claimAndRun() {
+        return databaseClient.sql(CLAIM_SQL)
+            .bind("owner", owner)
+            .bind("staleSeconds", (double) STALE_AFTER.toSeconds())
+            .map((row, _) -> map(row))
+            .one()
+            .flatMap(job -> run(job).then(Mono.defer(this::claimAndRun)));
+    }
+
+    private Mono<Void> run(AssignmentJob job) {
+        log.info("Running assignment job {} ({} {}) from user id {}", job.getId(), job.getKind(), job.getAuthorityIds(), job.getLastUserId());
+        Mono<String> nextChunk = databaseClient.sql(chunkSql.get(job.getKind()))
+            .bind("jobId", job.getId())
+            .bind("owner", owner)
+            .bind("chunkSize", CHUNK_SIZE)
+            .map((row, _) -> row.get("status", String.class))
+            .one()
+            .defaultIfEmpty("STOPPED"); // cancelled, or another node took it over
+        InvalidationEvent.Type changed = job.getKind().isRoles() ? InvalidationEvent.Type.USER_ROLE : InvalidationEvent.Type.USER_PERMISSION;
+        return nextChunk
+            .repeat()
+            .takeUntil(status -> !AssignmentJob.Status.RUNNING.name().equals(status))
+            .last()
+            .doOnNext(status -> log.info("Assignment job {} stopped: {}", job.getId(), status))
+            .then()
+            .onErrorResume(e -> {
+                log.warn("Assignment job {} failed: {}", job.getId(), e.getMessage());
+                return databaseClient.sql(FAIL_SQL)
+                    .bind("id", job.getId())
+                    .bind("owner", owner)
+                    .bind("error", String.valueOf(e.getMessage()))
+                    .then();
+            })
+            .then(Mono.defer(() -> invalidationBus.publish(InvalidationEvent.all(changed))));
+    }
+
+    /*
+     * job       : the job, only while this node still owns it and it is RUNNING
+     * chunk     : the next CHUNK_SIZE users after the checkpoint
+     * changed   : the set-based insert/delete for those users
+     * the outer UPDATE moves the checkpoint and completes the job once a chunk comes back empty
+     */
+    private static String buildChunkSql(AssignmentJob.Kind kind) {
+        String change = kind.isAssign()
+            ? """
+                INSERT INTO %1$s (user_id, %2$s, created_at, accessed_at)
+                SELECT c.id, a.id, now(), now()
+                FROM chunk c, job, %3$s a
+                WHERE a.id = ANY(job.authority_ids)
+                ON CONFLICT (user_id, %2$s) DO NOTHING
+                RETURNING 1
+              """.formatted(kind.table(), kind.column(), kind.catalogTable())
+            : """
+                DELETE FROM %1$s t
+                USING chunk c, job
+                WHERE t.user_id = c.id AND t.%2$s = ANY(job.authority_ids)
+                RETURNING 1
+              """.formatted(kind.table(), kind.column());
+        return """
+            WITH job AS (
+                SELECT last_user_id, authority_ids FROM assignment_jobs
+                WHERE id = :jobId AND status = 'RUNNING' AND owner = :owner
+            ), chunk AS (
+                SELECT u.id FROM users u, job
+                WHERE u.id > job.last_user_id
+                ORDER BY u.id
+                LIMIT :chunkSize
+            ), changed AS (
+            %s
+            )
+            UPDATE assignment_jobs j SET
+                last_user_id    = COALESCE((SELECT max(id) FROM chunk), j.last_user_id),
+                processed_users = j.processed_users + (SELECT count(*) FROM chunk),
+                affected_rows   = j.affected_rows + (SELECT count(*) FROM changed),
+                status          = CASE WHEN EXISTS (SELECT 1 FROM chunk) THEN j.status ELSE 'COMPLETED' END,
+                finished_at     = CASE WHEN EXISTS (SELECT 1 FROM chunk) THEN NULL ELSE now() END,
+                heartbeat_at    = now(),
+                updated_at      = now()
+            WHERE j.id = :jobId AND j.status = 'RUNNING' AND j.owner = :owner
+            RETURNING j.status
+            """.formatted(change);
+    }
+
+    private AssignmentJob map(Row row) {
+        AssignmentJob job = jobMapper.map(row);
+        Integer[] authorityIds = row.get("authority_ids", Integer[].class);
+        job.setAuthorityIds(authorityIds != null ? Arrays.asList(authorityIds) : List.of());
+        return job;
+    }
+}
@@ -1,21 +1,22 @@
 package com.trademarket.api.security.users.authorities.service;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 
-import com.trademarket.api.security.generics.RowMapper;
 import com.trademarket.api.security.roles.model.PermissionEntity;
-import com.trademarket.api.security.roles.repository.PermissionRepository;
+import com.trademarket.api.security.users.access.AccessTracker;
+import com.trademarket.api.security.users.authorities.catalog.AuthorityCatalog;
 import com.trademarket.api.security.users.authorities.model.UserPermissionEntity;
-import com.trademarket.api.security.users.authorities.repository.UserPermissionRepository;
-import com.trademarket.api.security.users.repository.UserRepository;
-import com.trademarket.api.security.users.authorities.exception.PermissionNotFoundException;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.mapping.CompiledRowMapper;
+import com.trademarket.api.security.users.mapping.RowMapperFactory;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -23,136 +24,80 @@ import reactor.core.publisher.Mono;
 @Service
 public class UserPermissionService {
 
-    private final UserRepository userRepository;
-    private final PermissionRepository permissionRepository;
-    private final UserPermissionRepository userPermissionRepository;
     private final DatabaseClient databaseClient;
+    private final InvalidationBus invalidationBus;
+    private final AuthorityCatalog authorityCatalog;
+    private final AccessTracker accessTracker;
 
-    RowMapper<UserPermissionEntity> userPermissionMapper = new RowMapper<>(UserPermissionEntity.class);
+    private static final String ALL_USER_PERMISSIONS_SQL = """
+            SELECT
+              up.id, up.user_id, up.username,
+              up.permission_id, p.name        AS permission_name,
+                              p.description AS permission_description,
+              up.created_at, up.accessed_at
+            FROM user_permissions up
+            JOIN permissions p ON up.permission_id = p.id
+            """;
+    private static final String ASSIGN_PERMISSIONS_SQL = """
+            WITH inserted AS (
+                INSERT INTO user_permissions (user_id, permission_id, created_at, accessed_at)
+                SELECT DISTINCT t.user_id, t.permission_id, :now, :now
+                FROM UNNEST(:userIds::bigint[], :permissionIds::int[]) AS t(user_id, permission_id)
+                WHERE EXISTS (SELECT 1 FROM users u WHERE u.id = t.user_id)
+                  AND EXISTS (SELECT 1 FROM permissions p WHERE p.id = t.permission_id)
+                ON CONFLICT (user_id, permission_id) DO NOTHING
+                RETURNING id, user_id, permission_id, created_at, accessed_at
+            )
+            SELECT i.id, i.user_id, u.username, i.permission_id, p.name AS permission_name, p.description AS permission_description,
+                   i.created_at, i.accessed_at
+            FROM inserted i
+            JOIN users u ON u.id = i.user_id
+            JOIN permissions p ON p.id = i.permission_id
+            """;
+    private static final int STREAM_FETCH_SIZE = 500;
 
-    public UserPermissionService(UserRepository userRepository, PermissionRepository permissionRepository, UserPermissionRepository userPermissionRepository, DatabaseClient databaseClient) {
-        this.userRepository = userRepository;
-        this.permissionRepository = permissionRepository;
-        this.userPermissionRepository = userPermissionRepository;
+    CompiledRowMapper<UserPermissionEntity> userPermissionMapper = RowMapperFactory.of(UserPermissionEntity.class);
+
+    public UserPermissionService(DatabaseClient databaseClient, InvalidationBus invalidationBus, AuthorityCatalog authorityCatalog, AccessTracker accessTracker) {
         this.databaseClient = databaseClient;
+        this.invalidationBus = invalidationBus;
+        this.authorityCatalog = authorityCatalog;
+        this.accessTracker = accessTracker;
     }
 
+    /**
+     * One statement for the whole request, see UserRoleService.addRolesToSpecificUsers: pairs go in as arrays,
+     * unknown users/permissions are skipped, the unique (user_id, permission_id) constraint absorbs existing ones.
+     */
     public Flux<UserPermissionEntity> addPermissionsToSpecificUsers(Map<Long, Set<PermissionEntity>> usersPermsMap) {
-        Instant now = Instant.now();
-        return Flux.fromIterable(usersPermsMap.entrySet())
-            .flatMap(entry -> {
-                Long userId = entry.getKey();
-                Set<PermissionEntity> permsSet = entry.getValue();
-                Flux<PermissionEntity> verifiedPerms = Flux.fromIterable(permsSet)
-                    .flatMap(permRef -> {
-                        if (permRef.getId() != null) {
-                            Integer id = permRef.getId();
-                            return permissionRepository.findById(id)
-                                .switchIfEmpty(Mono.error(new PermissionNotFoundException("Permission with id " + id + " not found")));
-                                /*.switchIfEmpty(Mono.<PermissionEntity>empty())
-                                .onErrorResume(e -> {
-                                    System.err.println("Error loading Permission by id " + id + ": " + e.getMessage());
-                                    return Mono.<PermissionEntity>empty();
-                                });*/
-                        } else if (permRef.getName() != null) {
-                            return permissionRepository.findByName(permRef.getName(), now)
-                                .switchIfEmpty(Mono.error(new PermissionNotFoundException("Permission with name " + permRef.getName() + " not found")));
-                                /*.switchIfEmpty(Mono.<PermissionEntity>empty())
-                                .onErrorResume(e -> {
-                                    System.err.println("Error loading Permission by name '" + permRef.getName() + "': " + e.getMessage());
-                                    return Mono.<PermissionEntity>empty();
-                                });*/
-                        } else return Mono.error(new PermissionNotFoundException("Permission not found"));
-                    }).distinct(PermissionEntity::getId);
-                return verifiedPerms
-                    .collectList()
-                    .flatMapMany(validList ->
-                        userPermissionRepository.findAllByUserId(userId)
-                            .map(UserPermissionEntity::getPermissionId)
-                            .collect(Collectors.toSet())
-                            .flatMapMany(existingIds ->
-                                Flux.fromIterable(validList)
-                                    .filter(p -> !existingIds.contains(p.getId()))
-                                    .flatMap(p -> {
-                                        UserPermissionEntity upe = new UserPermissionEntity(null, userId, p.getId());
-                                        upe.setPermissionName(p.getName());
-                                        upe.setPermissionDescription(p.getDescription());
-                                        upe.setCreatedAt(now);
-                                        upe.setAccessedAt(now);
-                                        return userPermissionRepository.save(upe)
-                                            .onErrorResume(e -> {
-                                                System.err.println("Failed to save UserPermission for userId="
-                                                    + userId + ", permissionId=" + p.getId() + ": " + e.getMessage());
-                                                return Mono.empty();
-                                            });
-                                    })
-                            )
-                    );
-            });
-    }
-
-    public Flux<UserPermissionEntity> addPermissionsToAllUsers(List<Integer> permissionIds) {
-        Instant now = Instant.now();
-
-        Flux<PermissionEntity> validPerms = Flux.fromIterable(permissionIds)
-            .distinct()
-            .flatMap(id ->
-                permissionRepository.findById(id)
-                    // ↑ When missing, return an empty Mono<PermissionEntity>
-                    .switchIfEmpty(Mono.<PermissionEntity>empty())
-                    // ↑ On error, log and return empty Mono<PermissionEntity>
-                    .onErrorResume(e -> {
-                        System.err.println("Error loading Permission id " + id + ": " + e.getMessage());
-                        return Mono.<PermissionEntity>empty();
-                    })
-            )
-            .cache();
-
-        return validPerms
+        // every reference of every user resolved against one catalog snapshot, no per-permission lookups
+        List<PermissionEntity> requestedPermissions = usersPermsMap.values().stream().flatMap(Set::stream).toList();
+        return authorityCatalog.resolving(List.of(), requestedPermissions)
+            .flatMapMany(catalog -> {
+                List<Long> userIds = new ArrayList<>();
+                List<Integer> permissionIds = new ArrayList<>();
+                usersPermsMap.forEach((userId, permissions) -> permissions.forEach(permission -> {
+                    userIds.add(userId);
+                    permissionIds.add(catalog.permission(permission).getId());
+                }));
+                if (userIds.isEmpty()) return Flux.<UserPermissionEntity>empty();
+                return databaseClient.sql(ASSIGN_PERMISSIONS_SQL)
+                    .bind("userIds", userIds.toArray(Long[]::new))
+                    .bind("permissionIds", permissionIds.toArray(Integer[]::new))
+                    .bind("now", Instant.now())
+                    .map((row, _) -> userPermissionMapper.map(row))
+                    .all();
+            })
             .collectList()
-            .flatMapMany(list ->
-                userRepository.findAll()
-                    .flatMap(user ->
-                        userPermissionRepository.findAllByUserId(user.getId())
-                            .map(UserPermissionEntity::getPermissionId)
-                            .collect(Collectors.toSet())
-                            .flatMapMany(existingIds ->
-                                Flux.fromIterable(list)
-                                    .filter(p -> !existingIds.contains(p.getId()))
-                                    .flatMap(p -> {
-                                        UserPermissionEntity upe = new UserPermissionEntity(null, user.getId(), p.getId());
-                                        upe.setUsername(user.getUsername());
-                                        upe.setPermissionName(p.getName());
-                                        upe.setPermissionDescription(p.getDescription());
-                                        upe.setCreatedAt(now);
-                                        upe.setAccessedAt(now);
-                                        return userPermissionRepository.save(upe)
-                                            // ↑ On save error, return empty Mono<UserPermissionEntity>
-                                            .onErrorResume(e -> {
-                                                System.err.println(
-                                                "Failed to save UserPermission for userId=" +
-                                                user.getId() +
-                                                ", permissionId=" + p.getId() +
-                                                ": " + e.getMessage()
-                                                );
-                                                return Mono.<UserPermissionEntity>empty();
-                                            });
-                                    })
-                            )
-                    )
-            );
+            .flatMapMany(assigned -> Flux.fromIterable(assigned)
+                .map(UserPermissionEntity::getUserId)
+                .distinct()
+                .concatMap(userId -> invalidationBus.publish(InvalidationEvent.Type.USER_PERMISSION, userId))
+                .thenMany(Flux.fromIterable(assigned)));
     }
 
     public Flux<UserPermissionEntity> getAllUserPermissions(Long cursor, Integer limit) {
-        StringBuilder sb = new StringBuilder("""
-            SELECT
-              up.id, up.user_id, up.username,
-              up.permission_id, p.name        AS permission_name,
-                              p.description AS permission_description,
-              up.created_at, up.accessed_at
-            FROM user_permissions up
-            JOIN permissions p ON up.permission_id = p.id
-            """);
+        StringBuilder sb = new StringBuilder(ALL_USER_PERMISSIONS_SQL);
         if (cursor != null) sb.append(" WHERE up.id > :cursor");
         
         sb.append(" ORDER BY up.id ASC");
@@ -167,16 +112,18 @@ public class UserPermissionService {
             .all();
     }
 
+    /* every assignment in id order, read through a server-side portal so only STREAM_FETCH_SIZE rows are in flight */
+    public Flux<UserPermissionEntity> streamAllUserPermissions() {
+        return databaseClient.sql(ALL_USER_PERMISSIONS_SQL + " ORDER BY up.id ASC")
+            .filter(statement -> statement.fetchSize(STREAM_FETCH_SIZE))
+            .map((row, _) -> userPermissionMapper.map(row))
+            .all();
+    }
+
+    /* a plain read, accessed_at is written behind by the AccessTracker */
     public Flux<UserPermissionEntity> getUserPermissions(Long userId) {
-        Instant now = Instant.now();
         String sql = """
-    UPDATE user_permissions up
-    SET accessed_at = :now
-    FROM permissions p, users u
-    WHERE up.permission_id = p.id
-      AND up.user_id       = u.id
-      AND up.user_id       = :userId
-    RETURNING
+    SELECT
       up.id,
       up.user_id,
       u.username            AS username,
@@ -185,13 +132,17 @@ public class UserPermissionService {
       p.description         AS permission_description,
       up.created_at,
       up.accessed_at
+    FROM user_permissions up
+    JOIN permissions p ON up.permission_id = p.id
+    JOIN users u       ON up.user_id       = u.id
+    WHERE up.user_id = :userId
     """;
 
         return databaseClient.sql(sql)
-            .bind("now", now)
             .bind("userId", userId)
             .map((row, _) -> userPermissionMapper.map(row))
-            .all();
+            .all()
+            .doOnComplete(() -> accessTracker.touch(AccessTracker.Target.USER_PERMISSIONS, userId));
     }
 
     /*private UserPermissionEntity mapRowToUserPermissionEntity(Row row) {
@@ -208,21 +159,14 @@ public class UserPermissionService {
     }*/
 
     public Mono<Void> removeUserPermissions(List<Long> ids) {
-        String sql = "DELETE FROM user_permissions WHERE id = ANY(:ids)";
+        String sql = "DELETE FROM user_permissions WHERE id = ANY(:ids) RETURNING user_id";
         return databaseClient.sql(sql)
             .bind("ids", ids)
-            .fetch()
-            .rowsUpdated()
+            .map((row, _) -> row.get("user_id", Long.class))
+            .all()
+            .distinct()
+            .concatMap(userId -> invalidationBus.publish(InvalidationEvent.Type.USER_PERMISSION, userId))
             .then();
     }
     
-    public Mono<String> removeUserPermissionsFromAllUsers(List<Integer> permissionIds) {
-        String sql = "DELETE FROM user_permissions WHERE permission_id = ANY(:permissionIds)";
-        return databaseClient.sql(sql)
-            .bind("permissionIds", permissionIds)
-            .fetch()
-            .rowsUpdated()
-            .thenReturn("Unassigned permissions: " + permissionIds);
-    }
-    
 }
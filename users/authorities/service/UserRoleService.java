@@ -1,20 +1,22 @@
 package com.trademarket.api.security.users.authorities.service;
 
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 
-import com.trademarket.api.security.generics.RowMapper;
 import com.trademarket.api.security.roles.model.RoleEntity;
-import com.trademarket.api.security.roles.repository.RoleRepository;
+import com.trademarket.api.security.users.access.AccessTracker;
+import com.trademarket.api.security.users.authorities.catalog.AuthorityCatalog;
 import com.trademarket.api.security.users.authorities.model.UserRoleEntity;
-import com.trademarket.api.security.users.authorities.repository.UserRoleRepository;
-import com.trademarket.api.security.users.authorities.exception.RoleNotFoundException;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.mapping.CompiledRowMapper;
+import com.trademarket.api.security.users.mapping.RowMapperFactory;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -22,130 +24,79 @@ import reactor.core.publisher.Mono;
 @Service
 public class UserRoleService {
 
-    private final RoleRepository roleRepository;
-    private final UserRoleRepository userRoleRepository;
-
     private final DatabaseClient databaseClient;
+    private final InvalidationBus invalidationBus;
+    private final AuthorityCatalog authorityCatalog;
+    private final AccessTracker accessTracker;
 
-    RowMapper<UserRoleEntity> userRoleMapper = new RowMapper<>(UserRoleEntity.class);
+    private static final String ALL_USER_ROLES_SQL = """
+            SELECT ur.id, ur.user_id, ur.username, ur.role_id, r.name AS role_name, r.description AS role_description, ur.created_at, ur.accessed_at
+            FROM user_roles ur
+            JOIN roles r ON ur.role_id = r.id
+            """;
+    private static final String ASSIGN_ROLES_SQL = """
+            WITH inserted AS (
+                INSERT INTO user_roles (user_id, role_id, created_at, accessed_at)
+                SELECT DISTINCT t.user_id, t.role_id, :now, :now
+                FROM UNNEST(:userIds::bigint[], :roleIds::int[]) AS t(user_id, role_id)
+                WHERE EXISTS (SELECT 1 FROM users u WHERE u.id = t.user_id)
+                  AND EXISTS (SELECT 1 FROM roles r WHERE r.id = t.role_id)
+                ON CONFLICT (user_id, role_id) DO NOTHING
+                RETURNING id, user_id, role_id, created_at, accessed_at
+            )
+            SELECT i.id, i.user_id, u.username, i.role_id, r.name AS role_name, r.description AS role_description, i.created_at, i.accessed_at
+            FROM inserted i
+            JOIN users u ON u.id = i.user_id
+            JOIN roles r ON r.id = i.role_id
+            """;
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    CompiledRowMapper<UserRoleEntity> userRoleMapper = RowMapperFactory.of(UserRoleEntity.class);
 
-    public UserRoleService( RoleRepository roleRepository, UserRoleRepository userRoleRepository, DatabaseClient databaseClient) {
-        this.roleRepository = roleRepository;
-        this.userRoleRepository = userRoleRepository;
+    public UserRoleService(DatabaseClient databaseClient, InvalidationBus invalidationBus, AuthorityCatalog authorityCatalog, AccessTracker accessTracker) {
         this.databaseClient = databaseClient;
+        this.invalidationBus = invalidationBus;
+        this.authorityCatalog = authorityCatalog;
+        this.accessTracker = accessTracker;
     }
 
     
-    /*public Flux<UserRoleEntity> addRolesToAllUsers(List<Integer> roleIds) {//checked
-        Instant now = Instant.now();
-        // 1) Load and validate all requested RoleEntity objects once
-        Flux<RoleEntity> validRoles = Flux.fromIterable(roleIds)
-            .distinct()
-            .flatMap(id -> roleRepository.findById(id)
-                .onErrorResume(e -> {
-                    System.out.println("Error loading Role id " + id + ": " + e.getMessage());
-                    return Mono.empty();
-                })
-                .switchIfEmpty(Mono.defer(() -> {
-                    System.out.println("Skipping missing role id " + id);
-                    return Mono.empty();
-                }))
-            )
-            .cache(); // replay the same validated list for each user
-    
-        // 2) For each user, assign only those roles they don’t already have
-        return validRoles
-            .collectList()
-            .flatMapMany(validList ->
-                userRepository.findAll()
-                    .flatMap(user ->
-                        userRoleRepository.findAllByUserId(user.getId())
-                            .map(UserRoleEntity::getRoleId)
-                            .collect(Collectors.toSet())
-                            .flatMapMany(existingIds ->
-                                Flux.fromIterable(validList)
-                                    .filter(role -> !existingIds.contains(role.getId()))
-                                    .flatMap(role -> {
-                                        UserRoleEntity ure = new UserRoleEntity(null, user.getId(), role.getId());
-                                        ure.setUsername(user.getUsername());
-                                        ure.setRoleName(role.getName());
-                                        ure.setRoleDescription(role.getDescription());
-                                        ure.setCreatedAt(now);
-                                        ure.setAccessedAt(now);
-                                        return userRoleRepository.save(ure)
-                                            .onErrorResume(e -> {
-                                                System.out.println("Failed to save UserRole for userId=" + user.getId() + ", roleId=" + role.getId() + ": " + e.getMessage());
-                                                return Mono.empty();
-                                            });
-                                    })
-                            )
-                    )
-            );
-    }*/
-    
+    /**
+     * One statement for the whole request: the (user, role) pairs go in as two arrays, pairs whose user or role no
+     * longer exists are skipped, and the unique (user_id, role_id) constraint makes already held roles a no-op
+     * instead of a check-then-insert race. Only the newly created assignments come back.
+     */
     public Flux<UserRoleEntity> addRolesToSpecificUsers(Map<Long, Set<RoleEntity>> usersRolesMap) {
-    Instant now = Instant.now();
-    return Flux.fromIterable(usersRolesMap.entrySet())
-        .flatMap(userRolesEntry -> {
-            Long userId = userRolesEntry.getKey();
-            Set<RoleEntity> userRolesSet = userRolesEntry.getValue();
-            Flux<RoleEntity> verifiedUserRoles = Flux.fromIterable(userRolesSet)
-                .flatMap(userRole -> {
-                    if (userRole.getId() != null) {
-                        Integer id = userRole.getId();
-                        return roleRepository.findById(id)
-                        .switchIfEmpty(Mono.error(new RoleNotFoundException("Role with id " + id + " not found")));
-                            /* .switchIfEmpty(Mono.<RoleEntity>empty())
-                            .onErrorResume(e -> {
-                                System.err.println("Error loading Role by id " + id + ": " + e.getMessage());
-                                return Mono.<RoleEntity>empty();
-                            });*/
-                    } else if (userRole.getName() != null) {
-                        return roleRepository.findByName(userRole.getName(), now)
-                            .switchIfEmpty(Mono.error(new RoleNotFoundException("Role with name " + userRole.getName() + " not found")));
-                            /*.switchIfEmpty(Mono.<RoleEntity>empty())
-                            .onErrorResume(e -> {
-                                System.err.println("Error loading Role by name " + userRole.getName() + ": " + e.getMessage());
-                                return Mono.<RoleEntity>empty();
-                            });*/
-                    } else return Mono.error(new RoleNotFoundException("Role not found"));
-                })
-                .distinct(RoleEntity::getId);
-            return verifiedUserRoles
-                .collectList()
-                .flatMapMany(verifiedRolesList ->
-                    userRoleRepository.findAllByUserId(userId)
-                        .map(UserRoleEntity::getRoleId)
-                        .collect(Collectors.toSet())
-                        .flatMapMany(currentUserRolesIds ->
-                            Flux.fromIterable(verifiedRolesList)
-                                .filter(r -> !currentUserRolesIds.contains(r.getId()))
-                                .flatMap(r -> {
-                                    UserRoleEntity newUserRole = new UserRoleEntity(null, userId, r.getId());
-                                    newUserRole.setRoleName(r.getName());
-                                    newUserRole.setRoleDescription(r.getDescription());
-                                    newUserRole.setCreatedAt(now);
-                                    newUserRole.setAccessedAt(now);
-                                    return userRoleRepository.save(newUserRole);
-                                        /* .onErrorResume(e -> {
-                                            System.err.println("Failed to save UserRole for userId=" +
-                                                userId + ", roleId=" + r.getId() + ": " + e.getMessage());
-                                            return Mono.<UserRoleEntity>empty();
-                                        });*/
-                                })
-                        )
-                );
-        });
-}
+        // every reference of every user resolved against one catalog snapshot, no per-role lookups
+        List<RoleEntity> requestedRoles = usersRolesMap.values().stream().flatMap(Set::stream).toList();
+        return authorityCatalog.resolving(requestedRoles, List.of())
+            .flatMapMany(catalog -> {
+                List<Long> userIds = new ArrayList<>();
+                List<Integer> roleIds = new ArrayList<>();
+                usersRolesMap.forEach((userId, roles) -> roles.forEach(role -> {
+                    userIds.add(userId);
+                    roleIds.add(catalog.role(role).getId());
+                }));
+                if (userIds.isEmpty()) return Flux.<UserRoleEntity>empty();
+                return databaseClient.sql(ASSIGN_ROLES_SQL)
+                    .bind("userIds", userIds.toArray(Long[]::new))
+                    .bind("roleIds", roleIds.toArray(Integer[]::new))
+                    .bind("now", Instant.now())
+                    .map((row, _) -> userRoleMapper.map(row))
+                    .all();
+            })
+            .collectList()
+            .flatMapMany(assigned -> Flux.fromIterable(assigned)
+                .map(UserRoleEntity::getUserId)
+                .distinct()
+                .concatMap(userId -> invalidationBus.publish(InvalidationEvent.Type.USER_ROLE, userId))
+                .thenMany(Flux.fromIterable(assigned)));
+    }
 
 
     public Flux<UserRoleEntity> getAllUserRoles(Long cursor, Integer limit) {
         // base query
-        StringBuilder sb = new StringBuilder("""
-            SELECT ur.id, ur.user_id, ur.username, ur.role_id, r.name AS role_name, r.description AS role_description, ur.created_at, ur.accessed_at
-            FROM user_roles ur
-            JOIN roles r ON ur.role_id = r.id
-            """);
+        StringBuilder sb = new StringBuilder(ALL_USER_ROLES_SQL);
 
         // optional cursor filter
         if (cursor != null) sb.append(" WHERE ur.id > :cursor");
@@ -166,16 +117,18 @@ public class UserRoleService {
             .all();
     }
 
+    /* every assignment in id order, read through a server-side portal so only STREAM_FETCH_SIZE rows are in flight */
+    public Flux<UserRoleEntity> streamAllUserRoles() {
+        return databaseClient.sql(ALL_USER_ROLES_SQL + " ORDER BY ur.id ASC")
+            .filter(statement -> statement.fetchSize(STREAM_FETCH_SIZE))
+            .map((row, _) -> userRoleMapper.map(row))
+            .all();
+    }
+
+    /* a plain read, accessed_at is written behind by the AccessTracker */
     public Flux<UserRoleEntity> getUserRoles(Long userId) {
-        Instant now = Instant.now();
         String sql = """
-    UPDATE user_roles ur
-    SET accessed_at = :accessedAt
-    FROM roles r, users u
-    WHERE ur.role_id   = r.id
-      AND ur.user_id   = u.id
-      AND ur.user_id   = :userId
-    RETURNING
+    SELECT
       ur.id,
       ur.user_id,
       u.username           AS username,
@@ -184,14 +137,17 @@ public class UserRoleService {
       r.description        AS role_description,
       ur.created_at,
       ur.accessed_at
+    FROM user_roles ur
+    JOIN roles r ON ur.role_id = r.id
+    JOIN users u ON ur.user_id = u.id
+    WHERE ur.user_id = :userId
     """;
 
-
         return databaseClient.sql(sql)
-            .bind("accessedAt", now)
             .bind("userId", userId)
             .map((row, _) -> userRoleMapper.map(row))
-            .all();
+            .all()
+            .doOnComplete(() -> accessTracker.touch(AccessTracker.Target.USER_ROLES, userId));
     }
 
     /*private UserRoleEntity mapRowToUserRoleEntity(Row row) {
@@ -208,21 +164,14 @@ public class UserRoleService {
     }*/
     
     public Mono<Void> removeUserRoles(List<Long> ids) {
-        String sql = "DELETE FROM user_roles WHERE id = ANY(:ids)";
+        String sql = "DELETE FROM user_roles WHERE id = ANY(:ids) RETURNING user_id";
         return databaseClient.sql(sql)
             .bind("ids", ids)
-            .fetch()
-            .rowsUpdated()
+            .map((row, _) -> row.get("user_id", Long.class))
+            .all()
+            .distinct()
+            .concatMap(userId -> invalidationBus.publish(InvalidationEvent.Type.USER_ROLE, userId))
             .then();
     }
 
-    public Mono<String> removeUserRolesFromAllUsers(List<Integer> roleIds) {
-        String sql = "DELETE FROM user_roles WHERE role_id = ANY(:roleIds)";
-        return databaseClient.sql(sql)
-            .bind("roleIds", roleIds)
-            .fetch()
-            .rowsUpdated()
-            .thenReturn("Unassigned roles: " + roleIds);
-    }
-
 }
@@ -0,0 +1,182 @@
+package com.trademarket.api.security.users.cache;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+
+import io.r2dbc.postgresql.api.Notification;
+import io.r2dbc.postgresql.api.PostgresqlConnection;
+import io.r2dbc.postgresql.api.PostgresqlResult;
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.Wrapped;
+import jakarta.annotation.PreDestroy;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+/**
+ * Cross-node cache invalidation over Postgres LISTEN/NOTIFY, no broker involved.
+ * {@link #publish} evicts locally right away and NOTIFYs "node|TYPE|id" so the other nodes evict too;
+ * a node ignores its own notifications. The LISTEN connection is held for the life of the node and re-established
+ * with backoff; every (re)LISTEN is followed by a full flush since anything sent while disconnected is lost.
+ * The connection comes from the pool and is UNLISTENed before it goes back.
+ */
+@Component
+public class InvalidationBus {
+
+    public static final String CHANNEL = "users_invalidation";
+
+    // NOTIFY payloads are capped at 8000 bytes, an id is at most 20 characters with its comma
+    private static final int IDS_PER_NOTIFICATION = 300;
+
+    private static final Logger log = LoggerFactory.getLogger(InvalidationBus.class);
+
+    private final ConnectionFactory connectionFactory;
+    private final DatabaseClient databaseClient;
+    private final ObjectProvider<InvalidationListener> listeners; // resolved per dispatch, listeners may depend on publishers
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    private Disposable subscription;
+
+    public InvalidationBus(ConnectionFactory connectionFactory, DatabaseClient databaseClient, ObjectProvider<InvalidationListener> listeners) {
+        this.connectionFactory = connectionFactory;
+        this.databaseClient = databaseClient;
+        this.listeners = listeners;
+    }
+
+    public Mono<Void> publish(InvalidationEvent.Type type, Long id) {
+        return publish(new InvalidationEvent(type, id));
+    }
+
+    /* never fails the write it follows: the worst case is another node serving a stale entry until its TTL */
+    public Mono<Void> publish(InvalidationEvent event) {
+        return Mono.fromRunnable(() -> dispatch(event))
+            .then(notify(event.encode()))
+            .onErrorResume(e -> {
+                log.warn("Could not publish invalidation {}: {}", event.encode(), e.getMessage());
+                return Mono.empty();
+            });
+    }
+
+    /* many rows of one type in as few notifications as the payload limit allows, instead of an all() that empties every cache */
+    public Mono<Void> publish(InvalidationEvent.Type type, List<Long> ids) {
+        if (ids.isEmpty()) return Mono.empty();
+        return Mono.fromRunnable(() -> dispatch(new InvalidationEvent.Batch(type, ids)))
+            .thenMany(Flux.range(0, (ids.size() + IDS_PER_NOTIFICATION - 1) / IDS_PER_NOTIFICATION)
+                .map(page -> new InvalidationEvent.Batch(type,
+                    ids.subList(page * IDS_PER_NOTIFICATION, Math.min(ids.size(), (page + 1) * IDS_PER_NOTIFICATION))))
+                .concatMap(batch -> notify(batch.encode())))
+            .then()
+            .onErrorResume(e -> {
+                log.warn("Could not publish invalidation of {} {} rows: {}", ids.size(), type, e.getMessage());
+                return Mono.empty();
+            });
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        subscription = Flux.usingWhen(connectionFactory.create(), this::listen, this::release, (connection, _) -> release(connection), this::release)
+            .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1))
+                .maxBackoff(Duration.ofSeconds(30))
+                .transientErrors(true)
+                .doBeforeRetry(signal -> log.warn("Invalidation listener lost, reconnecting: {}", signal.failure().getMessage())))
+            .repeatWhen(completed -> completed.delayElements(Duration.ofSeconds(1)))
+            .subscribe(this::receive);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (subscription != null) subscription.dispose();
+    }
+
+    /* notifications are subscribed to before LISTEN is sent, one arriving between LISTEN and the flush is not lost */
+    private Flux<String> listen(Connection connection) {
+        PostgresqlConnection postgres = unwrap(connection);
+        Mono<Notification> listenThenFlush = postgres.createStatement("LISTEN " + CHANNEL).execute()
+            .flatMap(PostgresqlResult::getRowsUpdated)
+            .then(Mono.fromRunnable(this::flush))
+            .then(Mono.empty());
+        return Flux.merge(postgres.getNotifications(), listenThenFlush)
+            .mapNotNull(Notification::getParameter);
+    }
+
+    /* the connection goes back to the pool, it must not stay subscribed to the channel under some other query */
+    private Mono<Void> release(Connection connection) {
+        return Flux.from(connection.createStatement("UNLISTEN *").execute())
+            .flatMap(Result::getRowsUpdated)
+            .then()
+            .onErrorResume(e -> {
+                log.debug("UNLISTEN before releasing the listener connection failed: {}", e.getMessage());
+                return Mono.empty();
+            })
+            .then(Mono.from(connection.close()));
+    }
+
+    private Mono<Void> notify(String payload) {
+        return databaseClient.sql("SELECT pg_notify(:channel, :payload)")
+            .bind("channel", CHANNEL)
+            .bind("payload", nodeId + "|" + payload)
+            .then();
+    }
+
+    private void receive(String payload) {
+        int separator = payload.indexOf('|');
+        if (separator < 0 || payload.substring(0, separator).equals(nodeId)) return;
+        String encoded = payload.substring(separator + 1);
+        try {
+            if (InvalidationEvent.Batch.isBatch(encoded)) dispatch(InvalidationEvent.Batch.decode(encoded));
+            else dispatch(InvalidationEvent.decode(encoded));
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring invalidation payload '{}': {}", payload, e.getMessage());
+        }
+    }
+
+    private void dispatch(InvalidationEvent event) {
+        each(listener -> listener.onInvalidation(event), event.encode());
+    }
+
+    private void dispatch(InvalidationEvent.Batch batch) {
+        each(listener -> listener.onInvalidation(batch), batch.type() + " batch of " + batch.ids().size());
+    }
+
+    private void flush() {
+        log.info("Invalidation listener (re)connected, flushing caches");
+        each(InvalidationListener::onFlush, "flush");
+    }
+
+    /*
+     * one failing listener must neither keep the others from their event nor escape into the subscriber,
+     * which would cancel the LISTEN subscription for good (retry and repeat only see errors from upstream)
+     */
+    private void each(Consumer<InvalidationListener> call, String what) {
+        listeners.orderedStream().forEach(listener -> {
+            try {
+                call.accept(listener);
+            } catch (RuntimeException e) {
+                log.warn("{} failed to handle invalidation {}", listener.getClass().getSimpleName(), what, e);
+            }
+        });
+    }
+
+    // the pool hands out a wrapper, LISTEN needs the driver's own connection
+    private static PostgresqlConnection unwrap(Connection connection) {
+        Object current = connection;
+        while (!(current instanceof PostgresqlConnection) && current instanceof Wrapped<?> wrapped) {
+            current = wrapped.unwrap();
+        }
+        if (current instanceof PostgresqlConnection postgres) return postgres;
+        throw new IllegalStateException("LISTEN/NOTIFY needs an r2dbc-postgresql connection, got " + connection.getClass().getName());
+    }
+}
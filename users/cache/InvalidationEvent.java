@@ -0,0 +1,67 @@
+package com.trademarket.api.security.users.cache;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * What changed, as sent over the invalidation bus: "TYPE|id", id empty when every entity of the type may have changed.
+ * Several rows of one type changed together travel as a {@link Batch}, "TYPE|id,id,...".
+ */
+public record InvalidationEvent(Type type, Long id) {
+
+    public enum Type {
+        /** id = users.id */
+        USER,
+        /** id = profiles.id */
+        PROFILE,
+        /** id = addresses.id */
+        ADDRESS,
+        /** id = the user whose role assignments changed */
+        USER_ROLE,
+        /** id = the user whose permission assignments changed */
+        USER_PERMISSION,
+        /** id = roles.id */
+        ROLE,
+        /** id = permissions.id */
+        PERMISSION
+    }
+
+    public static InvalidationEvent all(Type type) {
+        return new InvalidationEvent(type, null);
+    }
+
+    public boolean isAll() { return id == null; }
+
+    /** rows of one type changed together, e.g. the users one import chunk created */
+    public record Batch(Type type, List<Long> ids) {
+
+        String encode() {
+            return type.name() + "|" + ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+        }
+
+        /** @throws IllegalArgumentException on anything that isn't "TYPE|id,id,..." */
+        static Batch decode(String encoded) {
+            int separator = encoded.indexOf('|');
+            if (separator < 0) throw new IllegalArgumentException("Malformed invalidation batch: " + encoded);
+            List<Long> ids = Arrays.stream(encoded.substring(separator + 1).split(",")).map(Long::valueOf).toList();
+            return new Batch(Type.valueOf(encoded.substring(0, separator)), ids);
+        }
+
+        static boolean isBatch(String encoded) {
+            return encoded.indexOf(',') >= 0;
+        }
+    }
+
+    String encode() {
+        return type.name() + "|" + (id == null ? "" : id);
+    }
+
+    /** @throws IllegalArgumentException on anything that isn't "TYPE|id" */
+    static InvalidationEvent decode(String encoded) {
+        int separator = encoded.indexOf('|');
+        if (separator < 0) throw new IllegalArgumentException("Malformed invalidation event: " + encoded);
+        String id = encoded.substring(separator + 1);
+        return new InvalidationEvent(Type.valueOf(encoded.substring(0, separator)), id.isEmpty() ? null : Long.valueOf(id));
+    }
+}
@@ -0,0 +1,20 @@
+package com.trademarket.api.security.users.cache;
+
+import java.util.List;
+
+/**
+ * Implemented by every in-process cache that must follow writes made on any node.
+ * Both methods are called on the notification thread and must not block.
+ */
+public interface InvalidationListener {
+
+    void onInvalidation(InvalidationEvent event);
+
+    /** several rows of one type at once; by default each is handled as its own event */
+    default void onInvalidation(InvalidationEvent.Batch batch) {
+        for (Long id : batch.ids()) onInvalidation(new InvalidationEvent(batch.type(), id));
+    }
+
+    /** notifications may have been missed (startup, lost connection): drop everything */
+    void onFlush();
+}
@@ -0,0 +1,60 @@
+package com.trademarket.api.security.users.cache;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Coalesces identical concurrent reads: while a load for a key is running, later callers for the same key
+ * get the same result instead of issuing their own query. Nothing is kept once the load completes, this is not a cache.
+ * A caller cancelling never cancels the shared load, the other callers still want it.
+ */
+public final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final Counter coalesced;
+
+    /** @param meterRegistry may be null, users.singleflight.coalesced{name} counts the callers that attached to a running load */
+    public SingleFlight(String name, MeterRegistry meterRegistry) {
+        this.coalesced = meterRegistry == null ? null : Counter.builder("users.singleflight.coalesced")
+            .description("Reads served by attaching to an identical read already in flight")
+            .tag("name", name)
+            .register(meterRegistry);
+    }
+
+    public Mono<V> execute(K key, Supplier<Mono<V>> loader) {
+        return Mono.defer(() -> {
+            CompletableFuture<V> created = new CompletableFuture<>();
+            CompletableFuture<V> running = inFlight.putIfAbsent(key, created);
+            if (running != null) {
+                if (coalesced != null) coalesced.increment();
+                return Mono.fromFuture(running, true);
+            }
+            // deferred so a loader that throws fails this load instead of leaving the key stuck in flight
+            Mono.defer(loader).toFuture().whenComplete((value, error) -> {
+                inFlight.remove(key, created);
+                if (error != null) created.completeExceptionally(error);
+                else created.complete(value);
+            });
+            return Mono.fromFuture(created, true);
+        });
+    }
+
+    /*
+     * Flux reads are shared as a whole list, only use for bounded results. The list is never handed out itself:
+     * every caller gets its own copies, so one caller changing an element can't show up in another's response
+     */
+    public static <K, T> Flux<T> executeMany(SingleFlight<K, List<T>> flight, K key, Supplier<Flux<T>> loader, UnaryOperator<T> copy) {
+        return flight.execute(key, () -> loader.get().collectList()).flatMapIterable(Function.identity()).map(copy);
+    }
+
+    public int inFlight() { return inFlight.size(); }
+}
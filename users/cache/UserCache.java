@@ -0,0 +1,121 @@
+package com.trademarket.api.security.users.cache;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.trademarket.api.security.users.model.UserEntity;
+import com.trademarket.api.security.users.repository.UserRepository;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import reactor.core.publisher.Mono;
+
+/**
+ * Read-through cache in front of UserRepository.findById / findByUsername.
+ * Users are cached by id only; the username side is an index (lowercased username -> id) that is checked
+ * against the cached user on every read, so a rename can at worst cost one extra load, never return the wrong user.
+ * Writers publish USER events on the {@link InvalidationBus}, which reach this cache on every node;
+ * misses (unknown id/username) are not cached.
+ */
+@Component
+public class UserCache implements InvalidationListener {
+
+    private static final long MAXIMUM_SIZE = 10_000;
+    private static final Duration TTL = Duration.ofMinutes(5);
+
+    private final UserRepository userRepository;
+    private final SingleFlight<String, UserEntity> usernameFlight;
+
+    private final AsyncLoadingCache<Long, UserEntity> byId;
+    private final AsyncCache<String, Long> idByUsername = Caffeine.newBuilder()
+        .maximumSize(MAXIMUM_SIZE)
+        .expireAfterWrite(TTL)
+        .recordStats()
+        .buildAsync();
+
+    public UserCache(UserRepository userRepository, ObjectProvider<MeterRegistry> meterRegistry) {
+        this.userRepository = userRepository;
+        this.usernameFlight = new SingleFlight<>("users.by_username", meterRegistry.getIfAvailable());
+        this.byId = Caffeine.newBuilder()
+            .maximumSize(MAXIMUM_SIZE)
+            .expireAfterWrite(TTL)
+            .recordStats()
+            .buildAsync((id, _) -> userRepository.findById(id).toFuture());
+
+        meterRegistry.ifAvailable(registry -> {
+            // cache.gets{result=hit|miss}, cache.load.duration, cache.evictions... tagged cache=users.by_id / users.by_username
+            CaffeineCacheMetrics.monitor(registry, byId, "users.by_id");
+            CaffeineCacheMetrics.monitor(registry, idByUsername, "users.by_username");
+            Gauge.builder("users.cache.hit.ratio", byId, cache -> cache.synchronous().stats().hitRate())
+                .description("Share of user lookups by id served without a database round trip")
+                .register(registry);
+        });
+    }
+
+    public Mono<UserEntity> findById(Long id) {
+        return Mono.fromFuture(() -> byId.get(id), true);
+    }
+
+    public Mono<UserEntity> findByUsername(String username) {
+        String key = username.toLowerCase(Locale.ROOT);
+        return Mono.fromFuture(() -> idByUsername.get(key, (k, _) -> loadIdByUsername(k)), true)
+            .flatMap(id -> findById(id)
+                .filter(user -> key.equalsIgnoreCase(user.getUsername()))
+                .switchIfEmpty(Mono.defer(() -> {
+                    // the indexed user was renamed or deleted: drop the entry and ask the database once
+                    idByUsername.synchronous().invalidate(key);
+                    return usernameFlight.execute(key, () -> userRepository.findByUsername(key)).doOnNext(this::put);
+                })));
+    }
+
+    @Override
+    public void onInvalidation(InvalidationEvent event) {
+        if (event.type() != InvalidationEvent.Type.USER) return;
+        if (event.isAll()) invalidateAll();
+        else invalidate(event.id());
+    }
+
+    @Override
+    public void onFlush() {
+        invalidateAll();
+    }
+
+    public void invalidate(Long id) {
+        if (id == null) return;
+        CompletableFuture<UserEntity> cached = byId.getIfPresent(id);
+        if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+            UserEntity user = cached.join();
+            if (user != null && user.getUsername() != null) {
+                idByUsername.synchronous().invalidate(user.getUsername().toLowerCase(Locale.ROOT));
+            }
+        }
+        byId.synchronous().invalidate(id);
+    }
+
+    public void invalidateAll() {
+        byId.synchronous().invalidateAll();
+        idByUsername.synchronous().invalidateAll();
+    }
+
+    private CompletableFuture<Long> loadIdByUsername(String username) {
+        return userRepository.findByUsername(username)
+            .doOnNext(user -> byId.put(user.getId(), CompletableFuture.completedFuture(user)))
+            .map(UserEntity::getId)
+            .toFuture();
+    }
+
+    private void put(UserEntity user) {
+        byId.put(user.getId(), CompletableFuture.completedFuture(user));
+        if (user.getUsername() != null) {
+            idByUsername.put(user.getUsername().toLowerCase(Locale.ROOT), CompletableFuture.completedFuture(user.getId()));
+        }
+    }
+}
@@ -2,20 +2,26 @@ package com.trademarket.api.security.users.controller;
 
 import java.time.Instant;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.ReactiveSecurityContextHolder;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
@@ -26,15 +32,35 @@ import com.trademarket.api.exceptions.ValidationException;
 import com.trademarket.api.security.config.model.CustomUserDetails;
 import com.trademarket.api.security.roles.model.PermissionEntity;
 import com.trademarket.api.security.roles.model.RoleEntity;
+import com.trademarket.api.security.users.access.AccessTracker;
+import com.trademarket.api.security.users.authorities.catalog.EffectiveAuthorityCache;
 import com.trademarket.api.security.users.authorities.exception.PermissionNotFoundException;
+import com.trademarket.api.security.users.authorities.model.AuthorityCheck;
 import com.trademarket.api.security.users.authorities.exception.RoleNotFoundException;
 import com.trademarket.api.security.users.authorities.service.UserPermissionService;
 import com.trademarket.api.security.users.authorities.service.UserRoleService;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.cache.UserCache;
+import com.trademarket.api.security.users.exception.PasswordHashingBusyException;
 import com.trademarket.api.security.users.exception.UserNotFoundException;
+import com.trademarket.api.security.users.exception.VersionConflictException;
+import com.trademarket.api.security.users.facets.model.Facets;
+import com.trademarket.api.security.users.facets.service.FacetService;
+import com.trademarket.api.security.users.imports.model.ImportRowResult;
+import com.trademarket.api.security.users.imports.service.UserImportService;
+import com.trademarket.api.security.users.model.Availability;
+import com.trademarket.api.security.users.model.UserCount;
 import com.trademarket.api.security.users.model.UserEntity;
 import com.trademarket.api.security.users.repository.CustomUserRepository;
+import com.trademarket.api.security.users.repository.UserCursor;
+import com.trademarket.api.security.users.repository.UserFields;
+import com.trademarket.api.security.users.repository.UserFilter;
+import com.trademarket.api.security.users.repository.UserInclude;
 import com.trademarket.api.security.users.repository.UserRepository;
+import com.trademarket.api.security.users.repository.UserSort;
 import com.trademarket.api.security.users.service.UserService;
+import com.trademarket.api.security.users.validation.UniquenessChecker;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -43,6 +69,8 @@ import reactor.core.publisher.Mono;
 @RequestMapping("/users")
 public class UserController {
 
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     @Autowired
     private UserRepository userRepository;
 
@@ -52,17 +80,32 @@ public class UserController {
     private final UserService userService;
     private final UserRoleService userRoleService;
     private final UserPermissionService userPermissionService;
+    private final FacetService facetService;
+    private final UserCache userCache;
+    private final InvalidationBus invalidationBus;
+    private final EffectiveAuthorityCache effectiveAuthorities;
+    private final UniquenessChecker uniquenessChecker;
+    private final UserImportService userImportService;
+    private final AccessTracker accessTracker;
 
-    public UserController(UserService userService, UserRoleService userRoleService, UserPermissionService userPermissionService) {
+    public UserController(UserService userService, UserRoleService userRoleService, UserPermissionService userPermissionService, FacetService facetService, UserCache userCache, InvalidationBus invalidationBus, EffectiveAuthorityCache effectiveAuthorities, UniquenessChecker uniquenessChecker, UserImportService userImportService, AccessTracker accessTracker) {
         this.userService = userService;
         this.userRoleService = userRoleService;
         this.userPermissionService = userPermissionService;
+        this.facetService = facetService;
+        this.userCache = userCache;
+        this.invalidationBus = invalidationBus;
+        this.effectiveAuthorities = effectiveAuthorities;
+        this.uniquenessChecker = uniquenessChecker;
+        this.userImportService = userImportService;
+        this.accessTracker = accessTracker;
     }
 
     // CREATE.............................................................................................
     
+    /* the ETag is the new user's version, for the If-Match of its first PATCH */
     @PostMapping
-    public Mono<UserEntity> createUser(@RequestBody UserEntity userEntity) {
+    public Mono<ResponseEntity<UserEntity>> createUser(@RequestBody UserEntity userEntity) {
         Instant now = Instant.now();
         userEntity.setCreatedAt(now);
         userEntity.setUpdatedAt(now);
@@ -82,42 +125,157 @@ public class UserController {
                     .collectList()
                     .thenReturn(savedUserEntity);
             })
+            .map(savedUserEntity -> ResponseEntity.ok().eTag(Versions.etag(savedUserEntity.getVersion())).body(savedUserEntity))
             .onErrorMap(UserNotFoundException.class,
                 ex -> new ResponseStatusException(HttpStatus.NOT_FOUND, ex.getMessage(), ex))
             .onErrorMap(RoleNotFoundException.class,
                 ex -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage(), ex))
             .onErrorMap(PermissionNotFoundException.class,
                 ex -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage(), ex))
+            .onErrorMap(PasswordHashingBusyException.class,
+                ex -> new ResponseStatusException(HttpStatus.TOO_MANY_REQUESTS, ex.getMessage(), ex))
             .onErrorMap(ValidationException.class,
                 ex -> new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getErrors().toString(), ex));
     }
     
+    /**
+     * Bulk import: NDJSON body, one POST /users payload per line (profileEntity/addressEntity included),
+     * answered with one NDJSON result per line in the same order while the body is still being read
+     */
+    @PostMapping(value = "/import", consumes = MediaType.APPLICATION_NDJSON_VALUE, produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<ImportRowResult> importUsers(@RequestBody Flux<String> lines) {
+        return userImportService.importUsers(lines);
+    }
+    
     //READ....................................................................................................................
     
+    /* reads, cached or not, only record the access; AccessTracker writes accessed_at behind */
     @GetMapping("/{id:\\d+}")
     public Mono<UserEntity> getUserById(@PathVariable Long id) {
-        return userRepository.findById(id)
+        return userCache.findById(id)
+            .doOnNext(user -> accessTracker.touch(AccessTracker.Target.USER, user.getId()))
             .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "User with id "+ id + " not found")));
     }
 
     @GetMapping("/{username:^(?!\\d+$)[A-Za-z0-9][A-Za-z0-9_]{0,29}$}")
     public Mono<UserEntity> getUserByUsername(@PathVariable String username) {
-        return userRepository.findByUsername(username)
+        return userCache.findByUsername(username)
+            .doOnNext(user -> accessTracker.touch(AccessTracker.Target.USER, user.getId()))
             .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "User with username " + username+ " not found")));
     }
 
+    /** role and/or permission by name; granted only if the user holds every one given. Served from memory once cached */
+    @GetMapping("/{id:\\d+}/authorities/check")
+    public Mono<AuthorityCheck> checkAuthority(
+        @PathVariable Long id,
+        @RequestParam(required = false) String role,
+        @RequestParam(required = false) String permission) {
+        if (role == null && permission == null) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "role or permission is required"));
+        }
+        return effectiveAuthorities.check(id, role, permission)
+            .map(granted -> new AuthorityCheck(id, role, permission, granted));
+    }
+
+    /**
+     * nextCursor comes back in the X-Next-Cursor header so the body stays a plain array; absent on the last page.
+     * fields=id,username,... limits the user columns, include=profile,address,roles,permissions limits the joins (default: all).
+     * include=address lists every address of the user in "addresses" (only the matching ones when country/city/region/street
+     * filter), "addressEntity" is the first of them.
+     */
     @GetMapping
-    public Flux<UserEntity> getAllUsers(
-        @RequestParam(required = false) Long cursor,
+    public Mono<ResponseEntity<List<UserEntity>>> getAllUsers(
+        @RequestParam(required = false) String cursor,
         @RequestParam(required = false) Integer size,
         @RequestParam(required = false) String sortBy,
         @RequestParam(required = false) String direction,
+        @RequestParam(required = false) String search,
+        @RequestParam(required = false) String country,
+        @RequestParam(required = false) String city,
+        @RequestParam(required = false) String region,
+        @RequestParam(required = false) String street,
+        @RequestParam(required = false) String fields,
+        @RequestParam(required = false) String include) {
+        UserSort sort = UserSort.from(sortBy);
+        UserCursor after;
+        Set<String> selectedFields;
+        Set<UserInclude> includedParts;
+        try {
+            after = cursor != null && !cursor.isBlank() ? UserCursor.decode(cursor, sort) : null;
+            selectedFields = UserFields.parse(fields, sort);
+            includedParts = UserInclude.parse(include);
+        } catch (IllegalArgumentException ex) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex));
+        }
+        UserFilter filter = new UserFilter(search, country, city, region, street);
+        return customUserRepository.findAllPaginated(after, size, sort, direction, filter, selectedFields, includedParts)
+            .collectList()
+            .map(users -> {
+                ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+                if (size != null && !users.isEmpty() && users.size() == size) {
+                    response.header(NEXT_CURSOR_HEADER, UserCursor.after(sort, users.get(users.size() - 1)).encode());
+                }
+                return response.body(users);
+            });
+    }
+
+    /** Accept: application/x-ndjson or text/event-stream - rows are written as the database cursor yields them, no paging */
+    @GetMapping(produces = { MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE })
+    public Flux<UserEntity> streamAllUsers(
+        @RequestParam(required = false) String sortBy,
+        @RequestParam(required = false) String direction,
+        @RequestParam(required = false) String search,
+        @RequestParam(required = false) String country,
+        @RequestParam(required = false) String city,
+        @RequestParam(required = false) String region,
+        @RequestParam(required = false) String street,
+        @RequestParam(required = false) String fields,
+        @RequestParam(required = false) String include) {
+        UserSort sort = UserSort.from(sortBy);
+        UserFilter filter = new UserFilter(search, country, city, region, street);
+        return Flux.defer(() -> customUserRepository.streamAll(sort, direction, filter,
+                UserFields.parse(fields, sort), UserInclude.parse(include)))
+            .onErrorMap(IllegalArgumentException.class,
+                ex -> new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getMessage(), ex));
+    }
+
+    /** same filters as the listing; exact up to 10,000 matches, beyond that a planner estimate with approximate=true */
+    @GetMapping("/count")
+    public Mono<UserCount> countUsers(
         @RequestParam(required = false) String search,
         @RequestParam(required = false) String country,
         @RequestParam(required = false) String city,
         @RequestParam(required = false) String region,
         @RequestParam(required = false) String street) {
-        return customUserRepository.findAllPaginated(cursor, size, sortBy, direction, search, country, city, region, street);
+        return customUserRepository.count(new UserFilter(search, country, city, region, street));
+    }
+
+    /** top-N country/region/city/role values with user counts for the same filters, for the admin sidebars */
+    @GetMapping("/facets")
+    public Mono<Facets> getUserFacets(
+        @RequestParam(required = false) String search,
+        @RequestParam(required = false) String country,
+        @RequestParam(required = false) String city,
+        @RequestParam(required = false) String region,
+        @RequestParam(required = false) String street,
+        @RequestParam(defaultValue = "10") int limit) {
+        return facetService.userFacets(new UserFilter(search, country, city, region, street), limit);
+    }
+    
+    /** signup form helper: is each given value still free? answered from memory when the value was never taken */
+    @GetMapping("/availability")
+    public Mono<Availability> checkAvailability(
+        @RequestParam(required = false) String username,
+        @RequestParam(required = false) String email,
+        @RequestParam(required = false) String mobileNumber) {
+        if (username == null && email == null && mobileNumber == null) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "username, email or mobileNumber is required"));
+        }
+        return uniquenessChecker.conflicts(username, email, mobileNumber, null)
+            .map(conflicts -> new Availability(
+                username != null ? !conflicts.containsKey("username") : null,
+                email != null ? !conflicts.containsKey("email") : null,
+                mobileNumber != null ? !conflicts.containsKey("mobileNumber") : null));
     }
     
     @GetMapping("/current_user")
@@ -129,24 +287,37 @@ public class UserController {
             .cast(CustomUserDetails.class);
     }
 
-    //UPDATE...............................................................................................................    @PatchMapping("/{id}")
-    public Mono<Object> updateUser(@PathVariable Long id, @RequestBody Map<String, Object> updates) {
+    //UPDATE...............................................................................................................
+
+    /** conditional with If-Match: "<version>" (or "version" in the body): 409 if the user changed since, ETag is the new version */
+    @PatchMapping("/{id}")
+    public Mono<ResponseEntity<UserEntity>> updateUser(
+        @PathVariable Long id,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+        @RequestBody Map<String, Object> updates) {
         if (updates.containsKey("password")) updates.remove("password");
-        return userService.updateUser(id, updates)
-            .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found")))
-            .map(updatedUser -> (Object) updatedUser)
+        Long version = Versions.expected(ifMatch, updates);
+        return userService.updateUser(id, version, updates)
+            .map(updatedUser -> ResponseEntity.ok().eTag(Versions.etag(updatedUser.getVersion())).body(updatedUser))
             .onErrorMap(UserNotFoundException.class,
                 ex -> new ResponseStatusException(HttpStatus.NOT_FOUND, ex.getMessage(), ex))
+            .onErrorMap(VersionConflictException.class,
+                ex -> new ResponseStatusException(HttpStatus.CONFLICT, ex.getMessage() + ", current version is " + ex.getCurrentVersion(), ex))
             .onErrorMap(ValidationException.class,
                 ex -> new ResponseStatusException(HttpStatus.BAD_REQUEST, ex.getErrors().toString(), ex));
     }
 
-    //DELETE...............................................................................................................    @DeleteMapping("/{id}")
+    //DELETE...............................................................................................................
+
+    @DeleteMapping("/{id}")
     @ResponseStatus(HttpStatus.NO_CONTENT)
     public Mono<Void> deleteUser(@PathVariable Long id) {
-        return userRepository.deleteById(id)
-            .switchIfEmpty(Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found")))
-            .onErrorResume(ex -> Mono.error(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "An error occurred", ex)));
+        // deleteById completes empty whether or not a row went away, so look first
+        return userRepository.existsById(id)
+            .flatMap(exists -> exists
+                ? userRepository.deleteById(id).then(invalidationBus.publish(InvalidationEvent.Type.USER, id))
+                : Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND, "User not found")))
+            .then();
     }
     
     @DeleteMapping("/current_user")
@@ -156,7 +327,8 @@ public class UserController {
         return ReactiveSecurityContextHolder.getContext()
             .flatMap(context -> {
                 CustomUserDetails customUserDetails = (CustomUserDetails) context.getAuthentication().getPrincipal();
-                return userRepository.deleteById(customUserDetails.getId());
+                return userRepository.deleteById(customUserDetails.getId())
+                    .then(invalidationBus.publish(InvalidationEvent.Type.USER, customUserDetails.getId()));
             });
     }
 } 
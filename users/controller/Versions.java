@@ -0,0 +1,40 @@
+package com.trademarket.api.security.users.controller;
+
+import java.util.Map;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * The version a PATCH expects, for the conditional updates behind /users, /profiles and /addresses.
+ * It comes from If-Match ("3", W/"3"; * means any) or else from a "version" property in the body, and is sent back
+ * as the ETag of the updated entity.
+ */
+public final class Versions {
+
+    private Versions() {}
+
+    /** the body's "version" is removed either way so it is never taken for a column to set; null means unconditional */
+    public static Long expected(String ifMatch, Map<String, Object> body) {
+        Object fromBody = body.remove("version");
+        String value = ifMatch != null && !ifMatch.isBlank() ? ifMatch.trim() : null;
+        if (value != null) {
+            if (value.equals("*")) return null;
+            if (value.startsWith("W/")) value = value.substring(2);
+            value = value.replace("\"", "");
+        } else if (fromBody != null) {
+            value = fromBody.toString();
+        } else {
+            return null;
+        }
+        try {
+            return Long.valueOf(value);
+        } catch (NumberFormatException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Version must be a number, got " + value);
+        }
+    }
+
+    public static String etag(Long version) {
+        return version == null ? null : "\"" + version + "\"";
+    }
+}
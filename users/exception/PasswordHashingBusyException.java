@@ -0,0 +1,8 @@
+package com.trademarket.api.security.users.exception;
+
+/** the password hashing pool and its queue are full, controllers answer 429 so clients back off and retry */
+public class PasswordHashingBusyException extends RuntimeException {
+    public PasswordHashingBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,14 @@
+package com.trademarket.api.security.users.exception;
+
+/** a conditional update named a version the row no longer has, controllers answer 409 with the current one */
+public class VersionConflictException extends RuntimeException {
+
+    private final Long currentVersion;
+
+    public VersionConflictException(String message, Long currentVersion) {
+        super(message);
+        this.currentVersion = currentVersion;
+    }
+
+    public Long getCurrentVersion() { return currentVersion; }
+}
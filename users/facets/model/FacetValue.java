@@ -0,0 +1,4 @@
+package com.trademarket.api.security.users.facets.model;
+
+/** one bucket of a facet: a distinct country/region/city/role name and how many matches carry it */
+public record FacetValue(String value, long count) {}
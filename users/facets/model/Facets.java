@@ -0,0 +1,9 @@
+package com.trademarket.api.security.users.facets.model;
+
+import java.util.List;
+
+/**
+ * Result of GET /users/facets and GET /addresses/facets: the top values of each facet, most frequent first.
+ * Counts are distinct users for /users and addresses for /addresses, role counts are always distinct users.
+ */
+public record Facets(List<FacetValue> country, List<FacetValue> region, List<FacetValue> city, List<FacetValue> role) {}
@@ -0,0 +1,148 @@
+package com.trademarket.api.security.users.facets.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.trademarket.api.security.users.addresses.repository.AddressMatch;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.cache.InvalidationListener;
+import com.trademarket.api.security.users.facets.model.FacetValue;
+import com.trademarket.api.security.users.facets.model.Facets;
+import com.trademarket.api.security.users.repository.UserFilter;
+import com.trademarket.api.security.users.sql.SqlTemplateCache;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Country/region/city/role facets for the admin sidebars, computed in one statement:
+ * the filtered set is built once, the address facets come out of a single GROUPING SETS pass,
+ * the role facet joins the same set, and row_number() keeps the top N of each.
+ * Results are cached per filter for a short while and dropped on any USER, ADDRESS or USER_ROLE invalidation.
+ */
+@Service
+public class FacetService implements InvalidationListener {
+
+    private static final int MAX_LIMIT = 100;
+
+    private final DatabaseClient databaseClient;
+    private final SqlTemplateCache sqlTemplates;
+
+    private final AsyncCache<FacetKey, Facets> cache = Caffeine.newBuilder()
+        .expireAfterWrite(Duration.ofSeconds(60))
+        .maximumSize(1_000)
+        .buildAsync();
+
+    public FacetService(DatabaseClient databaseClient, SqlTemplateCache sqlTemplates) {
+        this.databaseClient = databaseClient;
+        this.sqlTemplates = sqlTemplates;
+    }
+
+    /* same filters as GET /users, counts distinct users */
+    public Mono<Facets> userFacets(UserFilter filter, int limit) {
+        return facets(new FacetKey(false, filter, AddressMatch.CONTAINS, clamp(limit)));
+    }
+
+    /* same filters as GET /addresses, counts addresses */
+    public Mono<Facets> addressFacets(String country, String city, String region, String street, boolean fuzzy, int limit) {
+        UserFilter filter = new UserFilter(null, country, city, region, street);
+        return facets(new FacetKey(true, filter, fuzzy ? AddressMatch.FUZZY : AddressMatch.EXACT, clamp(limit)));
+    }
+
+    @Override
+    public void onInvalidation(InvalidationEvent event) {
+        switch (event.type()) {
+            case USER, ADDRESS, USER_ROLE -> cache.synchronous().invalidateAll();
+            default -> { }
+        }
+    }
+
+    @Override
+    public void onFlush() {
+        cache.synchronous().invalidateAll();
+    }
+
+    private Mono<Facets> facets(FacetKey key) {
+        return Mono.fromFuture(cache.get(key, (k, _) -> query(k).toFuture()));
+    }
+
+    private Mono<Facets> query(FacetKey key) {
+        FacetShape shape = new FacetShape(key.addressScope(), key.filter().shape(), key.match());
+        String sql = sqlTemplates.get(shape, () -> buildSql(shape));
+        return key.filter().bind(databaseClient.sql(sql))
+            .bind("limit", key.limit())
+            .map((row, _) -> Map.entry(row.get("facet", String.class),
+                new FacetValue(row.get("value", String.class), row.get("total", Long.class))))
+            .all()
+            .collectList()
+            .map(rows -> {
+                List<FacetValue> country = new ArrayList<>(), region = new ArrayList<>(), city = new ArrayList<>(), role = new ArrayList<>();
+                for (Map.Entry<String, FacetValue> row : rows) {
+                    switch (row.getKey()) {
+                        case "country" -> country.add(row.getValue());
+                        case "region" -> region.add(row.getValue());
+                        case "city" -> city.add(row.getValue());
+                        default -> role.add(row.getValue());
+                    }
+                }
+                return new Facets(country, region, city, role);
+            });
+    }
+
+    private String buildSql(FacetShape shape) {
+        StringBuilder sql = new StringBuilder("WITH ");
+        if (shape.addressScope()) {
+            // matching addresses first, their owners are the set the role facet counts
+            sql.append("facet_addresses AS (SELECT addresses.user_id, addresses.country, addresses.region, addresses.city FROM addresses WHERE TRUE");
+            UserFilter.Shape filter = shape.filter();
+            if (filter.hasCountry()) sql.append(" AND").append(shape.match().predicate("addresses.country", "country"));
+            if (filter.hasCity()) sql.append(" AND").append(shape.match().predicate("addresses.city", "city"));
+            if (filter.hasRegion()) sql.append(" AND").append(shape.match().predicate("addresses.region", "region"));
+            if (filter.hasStreet()) sql.append(" AND").append(shape.match().predicate("addresses.street", "street"));
+            sql.append("), filtered_users AS (SELECT DISTINCT user_id AS id FROM facet_addresses), ");
+        } else {
+            // matching users first, every address of theirs feeds the address facets
+            sql.append("filtered_users AS (SELECT users.id FROM users");
+            shape.filter().appendWhere(sql, false);
+            sql.append("), facet_addresses AS (SELECT addresses.user_id, addresses.country, addresses.region, addresses.city")
+                .append(" FROM addresses JOIN filtered_users ON filtered_users.id = addresses.user_id), ");
+        }
+        String total = shape.addressScope() ? "count(*)" : "count(DISTINCT facet_addresses.user_id)";
+        sql.append("""
+            counted AS (
+                SELECT CASE WHEN GROUPING(country) = 0 THEN 'country' WHEN GROUPING(region) = 0 THEN 'region' ELSE 'city' END AS facet,
+                       CASE WHEN GROUPING(country) = 0 THEN country WHEN GROUPING(region) = 0 THEN region ELSE city END AS value,
+                       %s AS total
+                FROM facet_addresses
+                GROUP BY GROUPING SETS ((country), (region), (city))
+                UNION ALL
+                SELECT 'role', roles.name, count(DISTINCT user_roles.user_id)
+                FROM user_roles
+                JOIN filtered_users ON filtered_users.id = user_roles.user_id
+                JOIN roles ON roles.id = user_roles.role_id
+                GROUP BY roles.name
+            ),
+            ranked AS (
+                SELECT facet, value, total, row_number() OVER (PARTITION BY facet ORDER BY total DESC, value) AS position
+                FROM counted
+                WHERE value IS NOT NULL AND value <> ''
+            )
+            SELECT facet, value, total FROM ranked WHERE position <= :limit ORDER BY facet, position
+            """.formatted(total));
+        return sql.toString();
+    }
+
+    private static int clamp(int limit) {
+        return Math.max(1, Math.min(limit, MAX_LIMIT));
+    }
+
+    private record FacetKey(boolean addressScope, UserFilter filter, AddressMatch match, int limit) {}
+
+    private record FacetShape(boolean addressScope, UserFilter.Shape filter, AddressMatch match) {}
+}
@@ -0,0 +1,20 @@
+package com.trademarket.api.security.users.imports.model;
+
+import java.util.Map;
+
+/**
+ * One line of the POST /users/import report, in input order. line is the 1-based line of the NDJSON body,
+ * id is only set for CREATED rows and errors is field -> message like the other validation errors.
+ */
+public record ImportRowResult(long line, Long id, String username, Status status, Map<String, String> errors) {
+
+    public enum Status {
+        CREATED,
+        /** malformed JSON, failed validation, unknown role/permission or duplicated earlier in the same import */
+        INVALID,
+        /** username, email or mobile number already belongs to another user */
+        CONFLICT,
+        /** the chunk could not be written, nothing of it was stored */
+        FAILED
+    }
+}
@@ -0,0 +1,527 @@
+package com.trademarket.api.security.users.imports.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.trademarket.api.exceptions.ValidationException;
+import com.trademarket.api.security.generics.CustomValidation;
+import com.trademarket.api.security.roles.model.PermissionEntity;
+import com.trademarket.api.security.roles.model.RoleEntity;
+import com.trademarket.api.security.users.addresses.model.AddressEntity;
+import com.trademarket.api.security.users.authorities.catalog.AuthorityCatalog;
+import com.trademarket.api.security.users.authorities.exception.PermissionNotFoundException;
+import com.trademarket.api.security.users.authorities.exception.RoleNotFoundException;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.exception.PasswordHashingBusyException;
+import com.trademarket.api.security.users.imports.model.ImportRowResult;
+import com.trademarket.api.security.users.model.UserEntity;
+import com.trademarket.api.security.users.password.PasswordHashingExecutor;
+import com.trademarket.api.security.users.profiles.model.ProfileEntity;
+import com.trademarket.api.security.users.validation.IdentifierFilter;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+/**
+ * Bulk user import for partner onboarding: NDJSON in (one user per line, the POST /users body plus optional
+ * profileEntity and addressEntity), one {@link ImportRowResult} per line out, streamed in input order.
+ *
+ * Lines are processed in chunks of CHUNK_SIZE. Parsing, validation and claiming identifiers against earlier lines
+ * run chunk by chunk in input order on boundedElastic; then a couple of chunks at a time resolve roles/permissions
+ * against the catalog, reject values taken in the database, hash on the password pool (bcrypt hashes from the partner's system are stored as is), then write the whole chunk
+ * (users, profiles, addresses, role and permission links) with a single multi-row statement built on UNNEST.
+ * That statement is atomic, so a chunk is either fully written or reported FAILED as a whole.
+ */
+@Service
+public class UserImportService {
+
+    private static final int CHUNK_SIZE = 500;
+    private static final int CHUNK_CONCURRENCY = 2;
+    private static final int HASHING_RETRIES = 10;
+    private static final Duration HASHING_BACKOFF = Duration.ofMillis(20);
+
+    private static final String ALLOCATE_IDS_SQL =
+        "SELECT nextval(pg_get_serial_sequence('users', 'id')) AS id FROM generate_series(1, :count)";
+
+    private static final String EXISTING_IDENTIFIERS_SQL = """
+        SELECT LOWER(username) AS username, LOWER(email) AS email, mobile_number
+        FROM users
+        WHERE LOWER(username) = ANY(:usernames) OR LOWER(email) = ANY(:emails) OR mobile_number = ANY(:mobileNumbers)
+        """;
+
+    // ids are allocated up front so children can be written in the same statement; ON CONFLICT DO NOTHING, with the
+    // unique identifier indexes (V20261017_08) as arbiters, covers a concurrent signup taking a value after the
+    // pre-check: its row is simply missing from new_users
+    private static final String WRITE_CHUNK_SQL = """
+        WITH new_users AS (
+            INSERT INTO users (id, username, email, email_verified, mobile_number, mobile_number_verified, country_code, password,
+                               active, account_non_expired, account_non_locked, credentials_non_expired, expiry_date,
+                               created_at, updated_at, accessed_at)
+            SELECT u.id, u.username, u.email, false, u.mobile_number, false, u.country_code, u.password,
+                   false, u.account_non_expired, u.account_non_locked, u.credentials_non_expired, u.expiry_date::timestamptz,
+                   :now, :now, :now
+            FROM UNNEST(:ids::bigint[], :usernames::text[], :emails::text[], :mobileNumbers::text[], :countryCodes::text[],
+                        :passwords::text[], :accountNonExpired::boolean[], :accountNonLocked::boolean[],
+                        :credentialsNonExpired::boolean[], :expiryDates::text[])
+                 AS u(id, username, email, mobile_number, country_code, password, account_non_expired, account_non_locked,
+                      credentials_non_expired, expiry_date)
+            ON CONFLICT DO NOTHING
+            RETURNING id
+        ), new_profiles AS (
+            INSERT INTO profiles (user_id, firstname, lastname, profile_picture, bio, website, preferences, settings,
+                                  created_at, updated_at, accessed_at)
+            SELECT p.user_id, p.firstname, p.lastname, p.profile_picture, p.bio, p.website, p.preferences::jsonb, p.settings::jsonb,
+                   :now, :now, :now
+            FROM UNNEST(:profileUserIds::bigint[], :firstnames::text[], :lastnames::text[], :profilePictures::text[],
+                        :bios::text[], :websites::text[], :preferences::text[], :settings::text[])
+                 AS p(user_id, firstname, lastname, profile_picture, bio, website, preferences, settings)
+            WHERE p.user_id IN (SELECT id FROM new_users)
+        ), new_addresses AS (
+            INSERT INTO addresses (user_id, country, region, city, street, unit_number, zip_code, type, additional_info,
+                                   latitude, longitude, created_at, updated_at, accessed_at)
+            SELECT a.user_id, a.country, a.region, a.city, a.street, a.unit_number, a.zip_code, a.type, a.additional_info,
+                   a.latitude, a.longitude, :now, :now, :now
+            FROM UNNEST(:addressUserIds::bigint[], :countries::text[], :regions::text[], :cities::text[], :streets::text[],
+                        :unitNumbers::text[], :zipCodes::text[], :types::text[], :additionalInfos::text[],
+                        :latitudes::float8[], :longitudes::float8[])
+                 AS a(user_id, country, region, city, street, unit_number, zip_code, type, additional_info, latitude, longitude)
+            WHERE a.user_id IN (SELECT id FROM new_users)
+        ), new_user_roles AS (
+            INSERT INTO user_roles (user_id, role_id, created_at, accessed_at)
+            SELECT r.user_id, r.role_id, :now, :now
+            FROM UNNEST(:roleUserIds::bigint[], :roleIds::int[]) AS r(user_id, role_id)
+            WHERE r.user_id IN (SELECT id FROM new_users)
+        ), new_user_permissions AS (
+            INSERT INTO user_permissions (user_id, permission_id, created_at, accessed_at)
+            SELECT p.user_id, p.permission_id, :now, :now
+            FROM UNNEST(:permissionUserIds::bigint[], :permissionIds::int[]) AS p(user_id, permission_id)
+            WHERE p.user_id IN (SELECT id FROM new_users)
+        )
+        SELECT id FROM new_users
+        """;
+
+    private static final Logger log = LoggerFactory.getLogger(UserImportService.class);
+
+    private final DatabaseClient databaseClient;
+    private final ObjectMapper objectMapper;
+    private final CustomValidation<UserEntity> userValidation;
+    private final CustomValidation<ProfileEntity> profileValidation;
+    private final CustomValidation<AddressEntity> addressValidation;
+    private final PasswordHashingExecutor passwordHashing;
+    private final AuthorityCatalog authorityCatalog;
+    private final IdentifierFilter identifierFilter;
+    private final InvalidationBus invalidationBus;
+
+    public UserImportService(DatabaseClient databaseClient, ObjectMapper objectMapper, CustomValidation<UserEntity> userValidation,
+                             CustomValidation<ProfileEntity> profileValidation, CustomValidation<AddressEntity> addressValidation,
+                             PasswordHashingExecutor passwordHashing, AuthorityCatalog authorityCatalog,
+                             IdentifierFilter identifierFilter, InvalidationBus invalidationBus) {
+        this.databaseClient = databaseClient;
+        this.objectMapper = objectMapper;
+        this.userValidation = userValidation;
+        this.profileValidation = profileValidation;
+        this.addressValidation = addressValidation;
+        this.passwordHashing = passwordHashing;
+        this.authorityCatalog = authorityCatalog;
+        this.identifierFilter = identifierFilter;
+        this.invalidationBus = invalidationBus;
+    }
+
+    /** one line in, one result out; lines are pulled as chunks are written, so the body is never held in memory */
+    public Flux<ImportRowResult> importUsers(Flux<String> lines) {
+        Instant now = Instant.now();
+        Set<String> claimed = ConcurrentHashMap.newKeySet(); // identifiers taken by earlier lines of this import
+        return lines
+            .index((index, line) -> new Row(index + 1, line))
+            .filter(row -> !row.source.isBlank())
+            .buffer(CHUNK_SIZE)
+            // in input order, so the first line with a value wins across chunks as well
+            .concatMap(chunk -> Mono.fromCallable(() -> {
+                    chunk.forEach(this::parseAndValidate);
+                    claim(chunk, claimed);
+                    return chunk;
+                })
+                .subscribeOn(Schedulers.boundedElastic()), 1)
+            .flatMapSequential(chunk -> importChunk(chunk, claimed, now), CHUNK_CONCURRENCY)
+            // every written chunk already told the other nodes; a disconnect or error may have cut one off mid-write
+            .doFinally(signal -> {
+                if (signal != SignalType.ON_COMPLETE) {
+                    invalidationBus.publish(InvalidationEvent.all(InvalidationEvent.Type.USER)).subscribe();
+                }
+            });
+    }
+
+    private Flux<ImportRowResult> importChunk(List<Row> chunk, Set<String> claimed, Instant now) {
+        return resolveAuthorities(chunk)
+            .flatMap(this::rejectExisting)
+            .flatMap(this::hashPasswords)
+            .flatMap(rows -> write(rows, now))
+            .flatMap(rows -> announceCreated(rows).thenReturn(rows))
+            .doOnNext(rows -> release(rows, claimed))
+            .flatMapIterable(rows -> rows.stream().map(Row::result).toList());
+    }
+
+    /*
+     * per written chunk rather than once at the end, so other nodes don't spend a long import answering "available"
+     * for users that exist. Only the created ids: no node can have cached them, the other nodes' identifier filters
+     * add just their values and counts/facets go stale; an all(USER) would empty every cache and rescan users per chunk
+     */
+    private Mono<Void> announceCreated(List<Row> rows) {
+        List<Long> created = rows.stream().filter(Row::valid).map(row -> row.id).toList();
+        return invalidationBus.publish(InvalidationEvent.Type.USER, created);
+    }
+
+    private void parseAndValidate(Row row) {
+        try {
+            row.user = objectMapper.readValue(row.source, UserEntity.class);
+        } catch (JsonProcessingException e) {
+            row.errors.put("json", "Malformed JSON: " + e.getOriginalMessage());
+            return;
+        }
+        UserEntity user = row.user;
+        if (user.getUsername() != null) user.setUsername(user.getUsername().toLowerCase());
+        if (user.getEmail() != null) user.setEmail(user.getEmail().toLowerCase());
+        String password = user.getPassword();
+        if (password == null || password.isBlank()) row.errors.put("password", "Password is required");
+        // a partner bcrypt hash is format-checked by isVerifiableHash, the raw-password @Pattern doesn't apply to it
+        boolean hashed = passwordHashing.isVerifiableHash(password);
+        if (hashed) user.setPassword(null);
+        try {
+            validate(row, "", () -> userValidation.validateAll(user));
+        } finally {
+            if (hashed) user.setPassword(password);
+        }
+        if (user.getProfileEntity() != null) {
+            user.getProfileEntity().setUserId(0L); // not allocated yet, keeps @NotNull quiet
+            validate(row, "profileEntity.", () -> profileValidation.validateAll(user.getProfileEntity()));
+        }
+        if (user.getAddressEntity() != null) {
+            user.getAddressEntity().setUserId(0L);
+            validate(row, "addressEntity.", () -> addressValidation.validateAll(user.getAddressEntity()));
+        }
+    }
+
+    private static void validate(Row row, String prefix, Runnable validation) {
+        try {
+            validation.run();
+        } catch (ValidationException e) {
+            e.getErrors().forEach((field, message) -> row.errors.put(prefix + field, message));
+        }
+    }
+
+    /* every role/permission of the chunk resolved against one catalog snapshot */
+    private Mono<List<Row>> resolveAuthorities(List<Row> rows) {
+        List<RoleEntity> roles = new ArrayList<>();
+        List<PermissionEntity> permissions = new ArrayList<>();
+        for (Row row : rows) {
+            if (!row.valid()) continue;
+            if (row.user.getRoles() != null) roles.addAll(row.user.getRoles());
+            if (row.user.getPermissions() != null) permissions.addAll(row.user.getPermissions());
+        }
+        if (roles.isEmpty() && permissions.isEmpty()) return Mono.just(rows);
+        return authorityCatalog.resolving(roles, permissions)
+            .map(catalog -> {
+                for (Row row : rows) {
+                    if (!row.valid()) continue;
+                    try {
+                        if (row.user.getRoles() != null) {
+                            row.roleIds = row.user.getRoles().stream().map(catalog::role).map(RoleEntity::getId).distinct().toList();
+                        }
+                        if (row.user.getPermissions() != null) {
+                            row.permissionIds = row.user.getPermissions().stream().map(catalog::permission).map(PermissionEntity::getId).distinct().toList();
+                        }
+                    } catch (RoleNotFoundException e) {
+                        row.errors.put("roles", e.getMessage());
+                    } catch (PermissionNotFoundException e) {
+                        row.errors.put("permissions", e.getMessage());
+                    }
+                }
+                return rows;
+            });
+    }
+
+    /*
+     * first line of the import wins, later lines with the same username/email/mobile number are INVALID.
+     * A line claims all of its values or, if any is already taken, none of them
+     */
+    private static void claim(List<Row> rows, Set<String> claimed) {
+        for (Row row : rows) {
+            if (!row.valid()) continue;
+            UserEntity user = row.user;
+            if (user.getUsername() != null && claimed.contains("u:" + user.getUsername())) row.errors.put("username", "Duplicate username in this import");
+            if (user.getEmail() != null && claimed.contains("e:" + user.getEmail())) row.errors.put("email", "Duplicate email in this import");
+            if (user.getMobileNumber() != null && claimed.contains("m:" + user.getMobileNumber())) row.errors.put("mobileNumber", "Duplicate mobile number in this import");
+            if (!row.valid()) continue;
+            if (user.getUsername() != null) row.claims.add("u:" + user.getUsername());
+            if (user.getEmail() != null) row.claims.add("e:" + user.getEmail());
+            if (user.getMobileNumber() != null) row.claims.add("m:" + user.getMobileNumber());
+            claimed.addAll(row.claims);
+        }
+    }
+
+    /* lines that ended up not created (unknown role, taken in the database, FAILED) free their values for later lines */
+    private static void release(List<Row> rows, Set<String> claimed) {
+        for (Row row : rows) {
+            if (!row.valid()) row.claims.forEach(claimed::remove);
+        }
+    }
+
+    /* one query per chunk, and only for the values the identifier filter can't rule out */
+    private Mono<List<Row>> rejectExisting(List<Row> rows) {
+        Set<String> usernames = new HashSet<>();
+        Set<String> emails = new HashSet<>();
+        Set<String> mobileNumbers = new HashSet<>();
+        for (Row row : rows) {
+            if (!row.valid()) continue;
+            UserEntity user = row.user;
+            if (user.getUsername() != null && identifierFilter.mightContainUsername(user.getUsername())) usernames.add(user.getUsername());
+            if (user.getEmail() != null && identifierFilter.mightContainEmail(user.getEmail())) emails.add(user.getEmail());
+            if (user.getMobileNumber() != null && identifierFilter.mightContainMobileNumber(user.getMobileNumber())) mobileNumbers.add(user.getMobileNumber());
+        }
+        if (usernames.isEmpty() && emails.isEmpty() && mobileNumbers.isEmpty()) return Mono.just(rows);
+
+        Set<String> takenUsernames = new HashSet<>();
+        Set<String> takenEmails = new HashSet<>();
+        Set<String> takenMobileNumbers = new HashSet<>();
+        return databaseClient.sql(EXISTING_IDENTIFIERS_SQL)
+            .bind("usernames", lowercased(usernames))
+            .bind("emails", lowercased(emails))
+            .bind("mobileNumbers", mobileNumbers.toArray(String[]::new))
+            .map((row, _) -> {
+                String username = row.get("username", String.class);
+                String email = row.get("email", String.class);
+                String mobileNumber = row.get("mobile_number", String.class);
+                if (username != null) takenUsernames.add(username);
+                if (email != null) takenEmails.add(email);
+                if (mobileNumber != null) takenMobileNumbers.add(mobileNumber);
+                return true;
+            })
+            .all()
+            .then(Mono.fromCallable(() -> {
+                for (Row row : rows) {
+                    if (!row.valid()) continue;
+                    UserEntity user = row.user;
+                    if (user.getUsername() != null && takenUsernames.contains(user.getUsername().toLowerCase(Locale.ROOT))) row.errors.put("username", "Username already exists");
+                    if (user.getEmail() != null && takenEmails.contains(user.getEmail().toLowerCase(Locale.ROOT))) row.errors.put("email", "Email already exists");
+                    if (user.getMobileNumber() != null && takenMobileNumbers.contains(user.getMobileNumber())) row.errors.put("mobileNumber", "Mobile number already exists");
+                    if (!row.valid()) row.status = ImportRowResult.Status.CONFLICT;
+                }
+                return rows;
+            }));
+    }
+
+    /* never more in flight than the pool has threads, and a busy pool (signups) is waited out rather than failed */
+    private Mono<List<Row>> hashPasswords(List<Row> rows) {
+        return Flux.fromIterable(rows)
+            .filter(row -> row.valid() && !passwordHashing.isVerifiableHash(row.user.getPassword()))
+            .flatMap(row -> passwordHashing.encode(row.user.getPassword())
+                .retryWhen(Retry.backoff(HASHING_RETRIES, HASHING_BACKOFF).filter(PasswordHashingBusyException.class::isInstance))
+                .doOnNext(row.user::setPassword)
+                .onErrorResume(e -> {
+                    row.errors.put("password", "Could not be hashed, retry this line");
+                    row.status = ImportRowResult.Status.FAILED;
+                    return Mono.empty();
+                }), passwordHashing.parallelism())
+            .then(Mono.just(rows));
+    }
+
+    private Mono<List<Row>> write(List<Row> rows, Instant now) {
+        List<Row> valid = rows.stream().filter(Row::valid).toList();
+        if (valid.isEmpty()) return Mono.just(rows);
+        return databaseClient.sql(ALLOCATE_IDS_SQL)
+            .bind("count", valid.size())
+            .map((row, _) -> row.get("id", Long.class))
+            .all()
+            .collectList()
+            .flatMap(ids -> {
+                for (int i = 0; i < valid.size(); i++) valid.get(i).id = ids.get(i);
+                return bindChunk(databaseClient.sql(WRITE_CHUNK_SQL), valid, now)
+                    .map((row, _) -> row.get("id", Long.class))
+                    .all()
+                    .collect(HashSet<Long>::new, Set::add);
+            })
+            .map(inserted -> {
+                for (Row row : valid) {
+                    if (inserted.contains(row.id)) {
+                        identifierFilter.add(row.user.getUsername(), row.user.getEmail(), row.user.getMobileNumber());
+                    } else {
+                        row.errors.put("user", "Username, email or mobile number was taken meanwhile");
+                        row.status = ImportRowResult.Status.CONFLICT;
+                    }
+                }
+                return rows;
+            })
+            .onErrorResume(e -> {
+                log.warn("Import chunk of {} users failed: {}", valid.size(), e.getMessage());
+                for (Row row : valid) {
+                    row.errors.put("user", "Not imported: " + e.getMessage());
+                    row.status = ImportRowResult.Status.FAILED;
+                }
+                return Mono.just(rows);
+            });
+    }
+
+    private DatabaseClient.GenericExecuteSpec bindChunk(DatabaseClient.GenericExecuteSpec spec, List<Row> rows, Instant now) {
+        int size = rows.size();
+        Long[] ids = new Long[size];
+        String[] usernames = new String[size], emails = new String[size], mobileNumbers = new String[size];
+        String[] countryCodes = new String[size], passwords = new String[size], expiryDates = new String[size];
+        Boolean[] accountNonExpired = new Boolean[size], accountNonLocked = new Boolean[size], credentialsNonExpired = new Boolean[size];
+        List<Row> profiles = new ArrayList<>(), addresses = new ArrayList<>();
+        List<Long> roleUserIds = new ArrayList<>(), permissionUserIds = new ArrayList<>();
+        List<Integer> roleIds = new ArrayList<>(), permissionIds = new ArrayList<>();
+
+        for (int i = 0; i < size; i++) {
+            Row row = rows.get(i);
+            UserEntity user = row.user;
+            ids[i] = row.id;
+            usernames[i] = user.getUsername();
+            emails[i] = user.getEmail();
+            mobileNumbers[i] = user.getMobileNumber();
+            countryCodes[i] = user.getCountryCode();
+            passwords[i] = user.getPassword();
+            accountNonExpired[i] = user.getAccountNonExpired() != null ? user.getAccountNonExpired() : true;
+            accountNonLocked[i] = user.getAccountNonLocked() != null ? user.getAccountNonLocked() : true;
+            credentialsNonExpired[i] = user.getCredentialsNonExpired() != null ? user.getCredentialsNonExpired() : true;
+            expiryDates[i] = user.getExpiryDate() != null ? user.getExpiryDate().toString() : null;
+            if (user.getProfileEntity() != null) profiles.add(row);
+            if (user.getAddressEntity() != null) addresses.add(row);
+            row.roleIds.forEach(roleId -> { roleUserIds.add(row.id); roleIds.add(roleId); });
+            row.permissionIds.forEach(permissionId -> { permissionUserIds.add(row.id); permissionIds.add(permissionId); });
+        }
+
+        spec = spec.bind("now", now)
+            .bind("ids", ids)
+            .bind("usernames", usernames)
+            .bind("emails", emails)
+            .bind("mobileNumbers", mobileNumbers)
+            .bind("countryCodes", countryCodes)
+            .bind("passwords", passwords)
+            .bind("accountNonExpired", accountNonExpired)
+            .bind("accountNonLocked", accountNonLocked)
+            .bind("credentialsNonExpired", credentialsNonExpired)
+            .bind("expiryDates", expiryDates)
+            .bind("roleUserIds", roleUserIds.toArray(Long[]::new))
+            .bind("roleIds", roleIds.toArray(Integer[]::new))
+            .bind("permissionUserIds", permissionUserIds.toArray(Long[]::new))
+            .bind("permissionIds", permissionIds.toArray(Integer[]::new));
+        spec = bindProfiles(spec, profiles);
+        return bindAddresses(spec, addresses);
+    }
+
+    private DatabaseClient.GenericExecuteSpec bindProfiles(DatabaseClient.GenericExecuteSpec spec, List<Row> rows) {
+        int size = rows.size();
+        Long[] userIds = new Long[size];
+        String[] firstnames = new String[size], lastnames = new String[size], profilePictures = new String[size];
+        String[] bios = new String[size], websites = new String[size], preferences = new String[size], settings = new String[size];
+        for (int i = 0; i < size; i++) {
+            ProfileEntity profile = rows.get(i).user.getProfileEntity();
+            userIds[i] = rows.get(i).id;
+            firstnames[i] = profile.getFirstname();
+            lastnames[i] = profile.getLastname();
+            profilePictures[i] = profile.getProfilePicture();
+            bios[i] = profile.getBio();
+            websites[i] = profile.getWebsite();
+            preferences[i] = toJson(profile.getPreferences());
+            settings[i] = toJson(profile.getSettings());
+        }
+        return spec.bind("profileUserIds", userIds)
+            .bind("firstnames", firstnames)
+            .bind("lastnames", lastnames)
+            .bind("profilePictures", profilePictures)
+            .bind("bios", bios)
+            .bind("websites", websites)
+            .bind("preferences", preferences)
+            .bind("settings", settings);
+    }
+
+    private DatabaseClient.GenericExecuteSpec bindAddresses(DatabaseClient.GenericExecuteSpec spec, List<Row> rows) {
+        int size = rows.size();
+        Long[] userIds = new Long[size];
+        String[] countries = new String[size], regions = new String[size], cities = new String[size], streets = new String[size];
+        String[] unitNumbers = new String[size], zipCodes = new String[size], types = new String[size], additionalInfos = new String[size];
+        Double[] latitudes = new Double[size], longitudes = new Double[size];
+        for (int i = 0; i < size; i++) {
+            AddressEntity address = rows.get(i).user.getAddressEntity();
+            userIds[i] = rows.get(i).id;
+            countries[i] = address.getCountry();
+            regions[i] = address.getRegion();
+            cities[i] = address.getCity();
+            streets[i] = address.getStreet();
+            unitNumbers[i] = address.getUnitNumber();
+            zipCodes[i] = address.getZipCode();
+            types[i] = address.getType();
+            additionalInfos[i] = address.getAdditionalInfo();
+            latitudes[i] = address.getLatitude();
+            longitudes[i] = address.getLongitude();
+        }
+        return spec.bind("addressUserIds", userIds)
+            .bind("countries", countries)
+            .bind("regions", regions)
+            .bind("cities", cities)
+            .bind("streets", streets)
+            .bind("unitNumbers", unitNumbers)
+            .bind("zipCodes", zipCodes)
+            .bind("types", types)
+            .bind("additionalInfos", additionalInfos)
+            .bind("latitudes", latitudes)
+            .bind("longitudes", longitudes);
+    }
+
+    private String toJson(Object value) {
+        if (value == null) return null;
+        try {
+            return objectMapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not serialize " + value.getClass().getSimpleName(), e);
+        }
+    }
+
+    private static String[] lowercased(Set<String> values) {
+        return values.stream().map(value -> value.toLowerCase(Locale.ROOT)).toArray(String[]::new);
+    }
+
+    private static final class Row {
+        final long line;
+        final String source;
+        final Map<String, String> errors = new LinkedHashMap<>();
+        UserEntity user;
+        Long id;
+        List<Integer> roleIds = List.of();
+        List<Integer> permissionIds = List.of();
+        final List<String> claims = new ArrayList<>(); // identifiers this line holds in the import's claimed set
+        ImportRowResult.Status status; // set when the row failed for a reason other than being invalid
+
+        Row(long line, String source) {
+            this.line = line;
+            this.source = source;
+        }
+
+        boolean valid() { return errors.isEmpty(); }
+
+        ImportRowResult result() {
+            String username = user != null ? user.getUsername() : null;
+            if (valid()) return new ImportRowResult(line, id, username, ImportRowResult.Status.CREATED, Map.of());
+            return new ImportRowResult(line, null, username, status != null ? status : ImportRowResult.Status.INVALID, errors);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.trademarket.api.security.users.mapping;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.trademarket.api.security.generics.conversion.JsonConversion;
+
+import io.r2dbc.postgresql.codec.Json;
+import io.r2dbc.spi.ColumnMetadata;
+import io.r2dbc.spi.Row;
+import io.r2dbc.spi.RowMetadata;
+
+/**
+ * Row to entity mapper generated once per entity class by {@link RowMapperFactory}.
+ * The constructor and setters are plain lambdas, and which result column feeds which property is
+ * resolved once per result shape (all rows of a result set share one RowMetadata) instead of by name on every row.
+ * Columns the query didn't select are skipped, NULLs leave the entity's default in place.
+ * {@link #prefixed(String)} reads the columns a {@link ProjectionBuilder} aliased with that prefix (u_id, p_id...).
+ * {@link #copy} gives a mapped entity to more than one reader (coalesced reads) without sharing the instance.
+ */
+public final class CompiledRowMapper<T> {
+
+    /*
+     * converter is null when the column is read straight into the property type, persistent is false for @Transient,
+     * getter is null for write-only properties
+     */
+    record Property<T>(String name, String column, boolean persistent, Class<?> readType, BiConsumer<T, Object> setter,
+                       Function<T, Object> getter, Function<Object, Object> converter) {}
+
+    private record Plan(RowMetadata metadata, int[] indexes) {}
+
+    private final Class<T> type;
+    private final Supplier<T> constructor;
+    private final List<Property<T>> properties;
+    private final String prefix;
+
+    // per distinct column list, a new RowMetadata instance comes with every result set
+    private final ConcurrentHashMap<List<String>, int[]> plans = new ConcurrentHashMap<>();
+    private volatile Plan lastPlan;
+
+    CompiledRowMapper(Class<T> type, Supplier<T> constructor, List<Property<T>> properties, String prefix) {
+        this.type = type;
+        this.constructor = constructor;
+        this.properties = List.copyOf(properties);
+        this.prefix = prefix;
+    }
+
+    /* same lambdas, columns looked up as prefix + column; keep the returned mapper, it has its own plans */
+    public CompiledRowMapper<T> prefixed(String prefix) {
+        return new CompiledRowMapper<>(type, constructor, properties, prefix);
+    }
+
+    public T map(Row row) {
+        int[] indexes = indexes(row.getMetadata());
+        T target = constructor.get();
+        for (int i = 0; i < indexes.length; i++) {
+            int index = indexes[i];
+            if (index < 0) continue;
+            Property<T> property = properties.get(i);
+            Object value = row.get(index, property.readType());
+            if (value == null) continue;
+            property.setter().accept(target, property.converter() == null ? value : property.converter().apply(value));
+        }
+        return target;
+    }
+
+    /* for LEFT JOINed parts: null when the joined row is missing, i.e. its id column is NULL */
+    public T mapJoined(Row row) {
+        Integer id = idIndex(row.getMetadata());
+        if (id == null || row.get(id) == null) return null;
+        return map(row);
+    }
+
+    /**
+     * A new instance with every mapped property of source; collections and nested entities are left to the caller,
+     * like in {@link #map}. jsonb properties (Preferences, Settings) are mutable and copied through their JSON.
+     */
+    public T copy(T source) {
+        T target = constructor.get();
+        for (Property<T> property : properties) {
+            if (property.getter() == null) continue;
+            Object value = property.getter().apply(source);
+            if (value == null) continue;
+            if (property.readType() == Json.class) value = property.converter().apply(JsonConversion.objectToJson(value));
+            property.setter().accept(target, value);
+        }
+        return target;
+    }
+
+    public Class<T> getType() { return type; }
+    public String getPrefix() { return prefix; }
+
+    List<Property<T>> properties() { return properties; }
+
+    private Integer idIndex(RowMetadata metadata) {
+        int[] indexes = indexes(metadata);
+        for (int i = 0; i < indexes.length; i++) {
+            if (properties.get(i).name().equals("id")) return indexes[i] < 0 ? null : indexes[i];
+        }
+        return null;
+    }
+
+    private int[] indexes(RowMetadata metadata) {
+        Plan plan = lastPlan;
+        if (plan != null && plan.metadata() == metadata) return plan.indexes();
+
+        List<? extends ColumnMetadata> columns = metadata.getColumnMetadatas();
+        List<String> names = new ArrayList<>(columns.size());
+        for (ColumnMetadata column : columns) names.add(column.getName().toLowerCase(Locale.ROOT));
+
+        int[] indexes = plans.computeIfAbsent(names, this::resolve);
+        lastPlan = new Plan(metadata, indexes);
+        return indexes;
+    }
+
+    private int[] resolve(List<String> names) {
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < names.size(); i++) positions.putIfAbsent(names.get(i), i); // first duplicate wins, like Row.get(name)
+        int[] indexes = new int[properties.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = positions.getOrDefault(prefix + properties.get(i).column(), -1);
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,150 @@
+package com.trademarket.api.security.users.mapping;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import com.trademarket.api.exceptions.ValidationException;
+import com.trademarket.api.security.generics.conversion.JsonConversion;
+import com.trademarket.api.security.users.exception.VersionConflictException;
+import com.trademarket.api.security.users.sql.SqlTemplateCache;
+
+import io.r2dbc.postgresql.codec.Json;
+import reactor.core.publisher.Mono;
+
+/**
+ * PATCH in one round trip: {@code UPDATE ... SET <given properties>, version = version + 1 WHERE <key> = :key
+ * [AND version = :version] RETURNING *}, with the current row read back in the same statement when the version
+ * didn't match, so a stale version (409) and a missing row (404) are told apart without a separate read.
+ * Without a version the update is unconditional, as before. Property names, columns and value types come from the
+ * same metadata the {@link CompiledRowMapper}s use; one statement per set of updated properties, via {@link SqlTemplateCache}.
+ */
+public final class ConditionalUpdate<T> {
+
+    private record Shape(Class<?> type, String keyColumn, List<String> properties, boolean versioned) {}
+
+    private final CompiledRowMapper<T> mapper;
+    private final String table;
+    private final String keyColumn;
+    private final Map<String, CompiledRowMapper.Property<T>> updatable;
+
+    private ConditionalUpdate(CompiledRowMapper<T> mapper, String table, String keyColumn, Map<String, CompiledRowMapper.Property<T>> updatable) {
+        this.mapper = mapper;
+        this.table = table;
+        this.keyColumn = keyColumn;
+        this.updatable = updatable;
+    }
+
+    public static <T> ConditionalUpdate<T> of(Class<T> type, String table, String keyColumn) {
+        CompiledRowMapper<T> mapper = RowMapperFactory.of(type);
+        Map<String, CompiledRowMapper.Property<T>> updatable = new LinkedHashMap<>();
+        for (CompiledRowMapper.Property<T> property : mapper.properties()) {
+            if (property.persistent() && !property.column().equals("id") && !property.column().equals("version")) {
+                updatable.put(property.name(), property);
+            }
+        }
+        return new ConditionalUpdate<>(mapper, table, keyColumn, Map.copyOf(updatable));
+    }
+
+    /* properties a PATCH may never set, e.g. createdAt or server-managed flags */
+    public ConditionalUpdate<T> without(String... properties) {
+        Map<String, CompiledRowMapper.Property<T>> remaining = new HashMap<>(updatable);
+        for (String property : properties) remaining.remove(property);
+        return new ConditionalUpdate<>(mapper, table, keyColumn, Map.copyOf(remaining));
+    }
+
+    /**
+     * @param version the version the client last saw, null to update whatever is there
+     * @return the updated row; empty when no row has that key; {@link VersionConflictException} on a stale version,
+     *         {@link ValidationException} for unknown or read-only properties and values of the wrong type
+     */
+    public Mono<T> execute(DatabaseClient databaseClient, SqlTemplateCache sqlTemplates, Object key, Long version, Map<String, Object> updates) {
+        Map<String, String> errors = new HashMap<>();
+        for (String name : updates.keySet()) {
+            if (!updatable.containsKey(name)) errors.put(name, "Field cannot be updated");
+        }
+        if (!errors.isEmpty()) return Mono.error(new ValidationException(errors));
+
+        Shape shape = new Shape(mapper.getType(), keyColumn, List.copyOf(new TreeSet<>(updates.keySet())), version != null);
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sqlTemplates.get(shape, () -> buildSql(shape)))
+            .bind("key", key);
+        if (version != null) spec = spec.bind("version", version);
+        for (String name : shape.properties()) {
+            CompiledRowMapper.Property<T> property = updatable.get(name);
+            Class<?> type = property.readType();
+            Object value;
+            try {
+                value = columnValue(type, updates.get(name));
+            } catch (RuntimeException e) {
+                errors.put(name, "Invalid value");
+                continue;
+            }
+            spec = value == null ? spec.bindNull(property.column(), type) : spec.bind(property.column(), value);
+        }
+        if (!errors.isEmpty()) return Mono.error(new ValidationException(errors));
+
+        return spec
+            .map((row, _) -> {
+                T entity = mapper.map(row);
+                if (Boolean.TRUE.equals(row.get("applied", Boolean.class))) return entity;
+                throw new VersionConflictException(
+                    table + " row " + key + " was changed since version " + version, row.get("version", Long.class));
+            })
+            .one();
+    }
+
+    private String buildSql(Shape shape) {
+        StringBuilder set = new StringBuilder();
+        for (String name : shape.properties()) {
+            String column = updatable.get(name).column();
+            set.append(column).append(" = :").append(column).append(", ");
+        }
+        set.append("version = version + 1");
+        return """
+            WITH updated AS (
+                UPDATE %1$s SET %2$s
+                WHERE %3$s = :key%4$s
+                RETURNING *
+            )
+            SELECT updated.*, TRUE AS applied FROM updated
+            UNION ALL
+            SELECT existing.*, FALSE FROM %1$s existing
+            WHERE existing.%3$s = :key AND NOT EXISTS (SELECT 1 FROM updated)
+            """.formatted(table, set, keyColumn, shape.versioned() ? " AND version = :version" : "");
+    }
+
+    /* JSON request values (strings, numbers, booleans, maps) to what the column's codec expects */
+    private static Object columnValue(Class<?> type, Object value) {
+        if (value == null) return null;
+        if (type == Json.class) return JsonConversion.objectToJson(value);
+        if (type.isInstance(value)) return value;
+        String text = value.toString();
+        if (type == String.class) return text;
+        if (type == Boolean.class) {
+            if (!text.equalsIgnoreCase("true") && !text.equalsIgnoreCase("false")) throw new IllegalArgumentException(text);
+            return Boolean.valueOf(text);
+        }
+        if (type == Long.class) return new BigDecimal(text).longValueExact();
+        if (type == Integer.class) return new BigDecimal(text).intValueExact();
+        if (type == Short.class) return new BigDecimal(text).shortValueExact();
+        if (type == Double.class) return Double.valueOf(text);
+        if (type == Float.class) return Float.valueOf(text);
+        if (type == BigDecimal.class) return new BigDecimal(text);
+        if (type == Instant.class) return Instant.parse(text);
+        if (type == OffsetDateTime.class) return OffsetDateTime.parse(text);
+        if (type == LocalDateTime.class) return LocalDateTime.parse(text);
+        if (type == LocalDate.class) return LocalDate.parse(text);
+        if (type == UUID.class) return UUID.fromString(text);
+        throw new IllegalArgumentException("Unsupported type " + type.getName());
+    }
+}
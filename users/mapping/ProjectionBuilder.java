@@ -0,0 +1,69 @@
+package com.trademarket.api.security.users.mapping;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Explicit select lists from the same property metadata the {@link CompiledRowMapper}s use (@Transient properties left out),
+ * so joined tables sharing column names (id, user_id, created_at...) come back as distinct aliases:
+ * {@code ProjectionBuilder.of(ProfileEntity.class).columns("profiles", "p_")} gives "profiles.id AS p_id, ..."
+ * and {@code mapper.prefixed("p_")} reads them back.
+ */
+public final class ProjectionBuilder {
+
+    private final CompiledRowMapper<?> mapper;
+    private final Set<String> excluded;
+
+    private ProjectionBuilder(CompiledRowMapper<?> mapper, Set<String> excluded) {
+        this.mapper = mapper;
+        this.excluded = excluded;
+    }
+
+    public static ProjectionBuilder of(Class<?> type) {
+        return new ProjectionBuilder(RowMapperFactory.of(type), Set.of());
+    }
+
+    /* properties never selected, e.g. password */
+    public ProjectionBuilder without(String... properties) {
+        Set<String> without = new HashSet<>(excluded);
+        without.addAll(List.of(properties));
+        return new ProjectionBuilder(mapper, Set.copyOf(without));
+    }
+
+    /**
+     * {@code jsonb_build_object('id', addresses.id, 'userId', addresses.user_id, ...)}: one row as the JSON its entity
+     * deserializes from, property names as keys, for jsonb_agg of one-to-many parts
+     */
+    public String jsonObject(String table) {
+        StringBuilder object = new StringBuilder("jsonb_build_object(");
+        boolean first = true;
+        for (CompiledRowMapper.Property<?> property : mapper.properties()) {
+            if (!property.persistent() || excluded.contains(property.name())) continue;
+            if (!first) object.append(", ");
+            object.append('\'').append(property.name()).append("', ").append(table).append('.').append(property.column());
+            first = false;
+        }
+        return object.append(')').toString();
+    }
+
+    public String columns(String table, String prefix) {
+        return columns(table, prefix, null);
+    }
+
+    /**
+     * @param properties property names to select, null for all of them
+     * @param prefix alias prefix, empty for plain table.column references
+     */
+    public String columns(String table, String prefix, Set<String> properties) {
+        StringBuilder columns = new StringBuilder();
+        for (CompiledRowMapper.Property<?> property : mapper.properties()) {
+            if (!property.persistent() || excluded.contains(property.name())) continue;
+            if (properties != null && !properties.contains(property.name())) continue;
+            if (columns.length() > 0) columns.append(", ");
+            columns.append(table).append('.').append(property.column());
+            if (!prefix.isEmpty()) columns.append(" AS ").append(prefix).append(property.column());
+        }
+        return columns.toString();
+    }
+}
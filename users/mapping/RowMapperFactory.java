@@ -0,0 +1,160 @@
+package com.trademarket.api.security.users.mapping;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.temporal.Temporal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.relational.core.mapping.Column;
+import org.springframework.data.relational.core.mapping.Table;
+
+import com.trademarket.api.security.generics.conversion.JsonConversion;
+
+import io.r2dbc.postgresql.codec.Json;
+
+/**
+ * Compiles a {@link CompiledRowMapper} per entity class, once, the first time the class is asked for
+ * (in practice while the services holding the mappers are created at startup).
+ * Reflection is only used here to discover the properties; the mappers call the no-arg constructor, the setters
+ * and the getters (for {@link CompiledRowMapper#copy}) through LambdaMetafactory generated lambdas.
+ * A property is every field with a setter, in the column @Column names or its snake_case name.
+ * Collections and nested entities (@Table classes) are left to the caller, other non-simple types
+ * (Preferences, Settings) are jsonb columns read through JsonConversion.
+ */
+public final class RowMapperFactory {
+
+    private static final ClassValue<CompiledRowMapper<?>> MAPPERS = new ClassValue<>() {
+        @Override
+        protected CompiledRowMapper<?> computeValue(Class<?> type) {
+            return compile(type);
+        }
+    };
+
+    private RowMapperFactory() {}
+
+    @SuppressWarnings("unchecked")
+    public static <T> CompiledRowMapper<T> of(Class<T> type) {
+        return (CompiledRowMapper<T>) MAPPERS.get(type);
+    }
+
+    private static <T> CompiledRowMapper<T> compile(Class<T> type) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            Supplier<T> constructor = constructor(lookup, type);
+            List<CompiledRowMapper.Property<T>> properties = new ArrayList<>();
+            for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || !mappable(field.getType())) continue;
+                    MethodHandle setter = setter(lookup, type, field);
+                    if (setter == null) continue;
+                    properties.add(property(lookup, type, field, setter, getter(lookup, type, field)));
+                }
+            }
+            return new CompiledRowMapper<>(type, constructor, properties, "");
+        } catch (Throwable e) {
+            throw new IllegalStateException("Cannot compile a row mapper for " + type.getName(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> constructor(MethodHandles.Lookup lookup, Class<T> type) throws Throwable {
+        MethodHandle handle = lookup.findConstructor(type, MethodType.methodType(void.class));
+        CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+            MethodType.methodType(Supplier.class), MethodType.methodType(Object.class), handle, MethodType.methodType(type));
+        return (Supplier<T>) site.getTarget().invoke();
+    }
+
+    private static MethodHandle setter(MethodHandles.Lookup lookup, Class<?> type, Field field) {
+        String name = "set" + Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+        try {
+            return lookup.findVirtual(type, name, MethodType.methodType(void.class, field.getType()));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /* getX, or isX for the Boolean flags; null when there is neither */
+    private static MethodHandle getter(MethodHandles.Lookup lookup, Class<?> type, Field field) {
+        String suffix = Character.toUpperCase(field.getName().charAt(0)) + field.getName().substring(1);
+        for (String name : List.of("get" + suffix, "is" + suffix)) {
+            try {
+                return lookup.findVirtual(type, name, MethodType.methodType(field.getType()));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                // try the next name
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> CompiledRowMapper.Property<T> property(MethodHandles.Lookup lookup, Class<T> type, Field field,
+                                                             MethodHandle setter, MethodHandle getter) throws Throwable {
+        Class<?> fieldType = MethodType.methodType(field.getType()).wrap().returnType();
+        CallSite site = LambdaMetafactory.metafactory(lookup, "accept",
+            MethodType.methodType(BiConsumer.class), MethodType.methodType(void.class, Object.class, Object.class),
+            setter, MethodType.methodType(void.class, type, fieldType));
+        BiConsumer<T, Object> accept = (BiConsumer<T, Object>) site.getTarget().invoke();
+
+        Function<T, Object> get = null;
+        if (getter != null) {
+            CallSite getSite = LambdaMetafactory.metafactory(lookup, "apply",
+                MethodType.methodType(Function.class), MethodType.methodType(Object.class, Object.class),
+                getter, MethodType.methodType(fieldType, type));
+            get = (Function<T, Object>) getSite.getTarget().invoke();
+        }
+
+        Class<?> readType = fieldType;
+        Function<Object, Object> converter = null;
+        if (fieldType.isEnum()) {
+            readType = String.class;
+            converter = value -> enumValue(fieldType, (String) value);
+        } else if (!simple(fieldType)) {
+            readType = Json.class;
+            converter = value -> JsonConversion.jsonToObject((Json) value, fieldType);
+        }
+        return new CompiledRowMapper.Property<>(field.getName(), column(field),
+            !field.isAnnotationPresent(Transient.class), readType, accept, get, converter);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object enumValue(Class<?> enumType, String value) {
+        return Enum.valueOf((Class<? extends Enum>) enumType, value);
+    }
+
+    private static String column(Field field) {
+        Column column = field.getAnnotation(Column.class);
+        if (column != null && !column.value().isEmpty()) return column.value().toLowerCase(Locale.ROOT);
+        return field.getName().replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean mappable(Class<?> type) {
+        return !Collection.class.isAssignableFrom(type)
+            && !Map.class.isAssignableFrom(type)
+            && !(type.isArray() && type != byte[].class)
+            && !type.isAnnotationPresent(Table.class);
+    }
+
+    private static boolean simple(Class<?> type) {
+        return type == String.class
+            || type == Boolean.class
+            || type == Character.class
+            || Number.class.isAssignableFrom(type)
+            || Temporal.class.isAssignableFrom(type)
+            || type == UUID.class
+            || type == byte[].class;
+    }
+}
@@ -0,0 +1,76 @@
+-- Search document for GET /users?search=
+-- One tsvector per user over username + profile first/last name, kept current by triggers on both tables,
+-- so the listing can match with a single GIN index lookup instead of computing to_tsvector per joined row.
+
+ALTER TABLE users ADD COLUMN IF NOT EXISTS search_document tsvector NOT NULL DEFAULT ''::tsvector;
+
+CREATE OR REPLACE FUNCTION users_search_document(p_username text, p_firstname text, p_lastname text)
+RETURNS tsvector
+LANGUAGE sql
+IMMUTABLE
+AS $$
+    SELECT to_tsvector('simple', coalesce(p_username, ''))
+        || to_tsvector('simple', coalesce(p_firstname, '') || ' ' || coalesce(p_lastname, ''))
+$$;
+
+-- users side: username changes, new users (a profile may already exist when ids are reused by imports)
+CREATE OR REPLACE FUNCTION users_search_document_from_users()
+RETURNS trigger
+LANGUAGE plpgsql
+AS $$
+DECLARE
+    v_firstname text;
+    v_lastname  text;
+BEGIN
+    SELECT firstname, lastname INTO v_firstname, v_lastname
+    FROM profiles
+    WHERE user_id = NEW.id
+    LIMIT 1;
+
+    NEW.search_document := users_search_document(NEW.username, v_firstname, v_lastname);
+    RETURN NEW;
+END;
+$$;
+
+DROP TRIGGER IF EXISTS users_search_document_trg ON users;
+CREATE TRIGGER users_search_document_trg
+    BEFORE INSERT OR UPDATE OF username ON users
+    FOR EACH ROW
+    EXECUTE FUNCTION users_search_document_from_users();
+
+-- profiles side: name changes are pushed onto the owning user row
+CREATE OR REPLACE FUNCTION users_search_document_from_profiles()
+RETURNS trigger
+LANGUAGE plpgsql
+AS $$
+BEGIN
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        UPDATE users
+        SET search_document = users_search_document(users.username, NULL, NULL)
+        WHERE users.id = OLD.user_id;
+    END IF;
+
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        UPDATE users
+        SET search_document = users_search_document(users.username, NEW.firstname, NEW.lastname)
+        WHERE users.id = NEW.user_id;
+    END IF;
+
+    RETURN NULL;
+END;
+$$;
+
+DROP TRIGGER IF EXISTS profiles_search_document_trg ON profiles;
+CREATE TRIGGER profiles_search_document_trg
+    AFTER INSERT OR DELETE OR UPDATE OF firstname, lastname, user_id ON profiles
+    FOR EACH ROW
+    EXECUTE FUNCTION users_search_document_from_profiles();
+
+-- backfill
+UPDATE users
+SET search_document = users_search_document(users.username, profiles.firstname, profiles.lastname)
+FROM users u
+LEFT JOIN profiles ON profiles.user_id = u.id
+WHERE users.id = u.id;
+
+CREATE INDEX IF NOT EXISTS users_search_document_idx ON users USING gin (search_document);
@@ -0,0 +1,22 @@
+-- Substring / fuzzy address filters (GET /users?country=..., GET /addresses?fuzzy=true)
+-- Trigram GIN indexes serve ILIKE '%...%' and the % similarity operator; they are built over the unaccented
+-- value so matching ignores both case (ILIKE) and accents.
+
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+CREATE EXTENSION IF NOT EXISTS unaccent;
+
+-- unaccent() itself is only STABLE (dictionary lookup), an IMMUTABLE wrapper with a fixed dictionary is needed to index it
+CREATE OR REPLACE FUNCTION users_unaccent(text)
+RETURNS text
+LANGUAGE sql
+IMMUTABLE
+PARALLEL SAFE
+STRICT
+AS $$
+    SELECT public.unaccent('public.unaccent'::regdictionary, $1)
+$$;
+
+CREATE INDEX IF NOT EXISTS addresses_country_trgm_idx ON addresses USING gin (users_unaccent(country) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS addresses_region_trgm_idx  ON addresses USING gin (users_unaccent(region) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS addresses_city_trgm_idx    ON addresses USING gin (users_unaccent(city) gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS addresses_street_trgm_idx  ON addresses USING gin (users_unaccent(street) gin_trgm_ops);
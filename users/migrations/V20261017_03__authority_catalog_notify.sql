@@ -0,0 +1,38 @@
+-- Role / permission catalog changes reach every node's AuthorityCatalog through the invalidation bus
+-- (InvalidationBus.CHANNEL). Payload is "node|TYPE|id"; "db" is never a node id, so every node handles it.
+-- accessed_at touches don't change the catalog and are not notified.
+
+CREATE OR REPLACE FUNCTION users_notify_catalog()
+RETURNS trigger
+LANGUAGE plpgsql
+AS $$
+BEGIN
+    PERFORM pg_notify('users_invalidation',
+        'db|' || TG_ARGV[0] || '|' || CASE WHEN TG_OP = 'DELETE' THEN OLD.id ELSE NEW.id END);
+    RETURN NULL;
+END
+$$;
+
+DROP TRIGGER IF EXISTS roles_notify_catalog_write ON roles;
+CREATE TRIGGER roles_notify_catalog_write
+    AFTER INSERT OR DELETE ON roles
+    FOR EACH ROW EXECUTE FUNCTION users_notify_catalog('ROLE');
+
+DROP TRIGGER IF EXISTS roles_notify_catalog_update ON roles;
+CREATE TRIGGER roles_notify_catalog_update
+    AFTER UPDATE ON roles
+    FOR EACH ROW
+    WHEN (OLD.id IS DISTINCT FROM NEW.id OR OLD.name IS DISTINCT FROM NEW.name OR OLD.description IS DISTINCT FROM NEW.description)
+    EXECUTE FUNCTION users_notify_catalog('ROLE');
+
+DROP TRIGGER IF EXISTS permissions_notify_catalog_write ON permissions;
+CREATE TRIGGER permissions_notify_catalog_write
+    AFTER INSERT OR DELETE ON permissions
+    FOR EACH ROW EXECUTE FUNCTION users_notify_catalog('PERMISSION');
+
+DROP TRIGGER IF EXISTS permissions_notify_catalog_update ON permissions;
+CREATE TRIGGER permissions_notify_catalog_update
+    AFTER UPDATE ON permissions
+    FOR EACH ROW
+    WHEN (OLD.id IS DISTINCT FROM NEW.id OR OLD.name IS DISTINCT FROM NEW.name OR OLD.description IS DISTINCT FROM NEW.description)
+    EXECUTE FUNCTION users_notify_catalog('PERMISSION');
@@ -0,0 +1,21 @@
+-- Role / permission assignment is a single INSERT ... ON CONFLICT (user_id, role_id|permission_id) DO NOTHING
+-- (UserRoleService / UserPermissionService), which needs these unique constraints as its arbiter.
+-- The old check-then-insert path could race into duplicates: keep the oldest row of each pair first.
+
+DELETE FROM user_roles ur
+USING user_roles older
+WHERE ur.user_id = older.user_id
+  AND ur.role_id = older.role_id
+  AND ur.id > older.id;
+
+DELETE FROM user_permissions up
+USING user_permissions older
+WHERE up.user_id = older.user_id
+  AND up.permission_id = older.permission_id
+  AND up.id > older.id;
+
+ALTER TABLE user_roles DROP CONSTRAINT IF EXISTS user_roles_user_id_role_id_key;
+ALTER TABLE user_roles ADD CONSTRAINT user_roles_user_id_role_id_key UNIQUE (user_id, role_id);
+
+ALTER TABLE user_permissions DROP CONSTRAINT IF EXISTS user_permissions_user_id_permission_id_key;
+ALTER TABLE user_permissions ADD CONSTRAINT user_permissions_user_id_permission_id_key UNIQUE (user_id, permission_id);
@@ -0,0 +1,30 @@
+-- Background "assign to / unassign from all users" runs (AssignmentJobService).
+-- last_user_id is the checkpoint: every user with id <= last_user_id is done. Each chunk moves it forward in the
+-- same statement that does the chunk's work, so a restarted job resumes exactly where the last commit left it.
+-- owner/heartbeat_at let another node take over a RUNNING job whose node stopped reporting.
+
+CREATE TABLE IF NOT EXISTS assignment_jobs (
+    id              BIGSERIAL PRIMARY KEY,
+    kind            TEXT        NOT NULL,
+    authority_ids   INT[]       NOT NULL,
+    status          TEXT        NOT NULL DEFAULT 'PENDING',
+    last_user_id    BIGINT      NOT NULL DEFAULT 0,
+    total_users     BIGINT      NOT NULL DEFAULT 0,
+    processed_users BIGINT      NOT NULL DEFAULT 0,
+    affected_rows   BIGINT      NOT NULL DEFAULT 0,
+    error           TEXT,
+    owner           TEXT,
+    heartbeat_at    TIMESTAMPTZ,
+    created_at      TIMESTAMPTZ NOT NULL DEFAULT now(),
+    updated_at      TIMESTAMPTZ NOT NULL DEFAULT now(),
+    finished_at     TIMESTAMPTZ,
+    CONSTRAINT assignment_jobs_kind_check
+        CHECK (kind IN ('ASSIGN_ROLES', 'UNASSIGN_ROLES', 'ASSIGN_PERMISSIONS', 'UNASSIGN_PERMISSIONS')),
+    CONSTRAINT assignment_jobs_status_check
+        CHECK (status IN ('PENDING', 'RUNNING', 'COMPLETED', 'CANCELLED', 'FAILED'))
+);
+
+-- the runners only ever look for unfinished jobs
+CREATE INDEX IF NOT EXISTS assignment_jobs_unfinished_idx
+    ON assignment_jobs (id)
+    WHERE status IN ('PENDING', 'RUNNING');
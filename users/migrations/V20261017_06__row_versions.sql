@@ -0,0 +1,8 @@
+-- Optimistic versions for PATCH /users/{id}, /profiles/{user_id} and /addresses/{id} (ConditionalUpdate).
+-- Every conditional update bumps version in the same statement; a client sends back the version it read
+-- (If-Match or "version" in the body) and gets 409 instead of overwriting a change it never saw.
+-- Existing rows start at 0. No trigger: only the PATCH paths and whole-entity saves move it.
+
+ALTER TABLE users     ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE profiles  ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;
+ALTER TABLE addresses ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL DEFAULT 0;
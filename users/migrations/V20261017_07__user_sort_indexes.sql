@@ -0,0 +1,13 @@
+-- Keyset paging for GET /users?sortBy=... (UserSort)
+-- Each sort key is a COALESCE expression and pages compare (expression, users.id), so a plain column index can't
+-- serve the ORDER BY or the cursor; these indexes are built over the exact same expressions, id as tiebreaker.
+-- Keep them in sync with UserSort.expression().
+
+CREATE INDEX IF NOT EXISTS users_sort_created_at_idx ON users ((COALESCE(created_at, 'epoch'::timestamptz)), id);
+CREATE INDEX IF NOT EXISTS users_sort_username_idx   ON users ((COALESCE(username, '')), id);
+CREATE INDEX IF NOT EXISTS users_sort_email_idx      ON users ((COALESCE(email, '')), id);
+
+-- name sorts order by the joined profile; users without one sort as '' and come from the users side
+CREATE INDEX IF NOT EXISTS profiles_sort_firstname_idx ON profiles ((COALESCE(firstname, '')), user_id);
+CREATE INDEX IF NOT EXISTS profiles_sort_lastname_idx  ON profiles ((COALESCE(lastname, '')), user_id);
+CREATE INDEX IF NOT EXISTS profiles_sort_fullname_idx  ON profiles ((COALESCE(firstname, '') || ' ' || COALESCE(lastname, '')), user_id);
@@ -0,0 +1,22 @@
+-- Username, email (both case-insensitive, like UserService stores them) and mobile number are unique per user.
+-- UniquenessChecker and the import pre-check answer from a Bloom filter and a query, neither of which can see a
+-- value another node is committing at the same moment; these indexes are the arbiter behind them. The import's
+-- INSERT ... ON CONFLICT DO NOTHING relies on them, other writes report a violation as "already exists".
+-- The old check-then-insert paths could race into duplicates: the oldest user keeps the value, later ones get
+-- it suffixed with "#dup<id>" (findable, no account is deleted) and have to pick a new one.
+
+UPDATE users u
+SET username = u.username || '#dup' || u.id
+WHERE EXISTS (SELECT 1 FROM users older WHERE LOWER(older.username) = LOWER(u.username) AND older.id < u.id);
+
+UPDATE users u
+SET email = u.email || '#dup' || u.id
+WHERE EXISTS (SELECT 1 FROM users older WHERE LOWER(older.email) = LOWER(u.email) AND older.id < u.id);
+
+UPDATE users u
+SET mobile_number = u.mobile_number || '#dup' || u.id
+WHERE EXISTS (SELECT 1 FROM users older WHERE older.mobile_number = u.mobile_number AND older.id < u.id);
+
+CREATE UNIQUE INDEX IF NOT EXISTS users_username_lower_key ON users (LOWER(username));
+CREATE UNIQUE INDEX IF NOT EXISTS users_email_lower_key    ON users (LOWER(email));
+CREATE UNIQUE INDEX IF NOT EXISTS users_mobile_number_key  ON users (mobile_number);
@@ -0,0 +1,7 @@
+package com.trademarket.api.security.users.model;
+
+/**
+ * Result of GET /users/availability for the signup form: true when the value is free, null when it was not asked.
+ * Advisory only, the value can still be taken before the signup is submitted.
+ */
+public record Availability(Boolean username, Boolean email, Boolean mobileNumber) {}
@@ -0,0 +1,7 @@
+package com.trademarket.api.security.users.model;
+
+/**
+ * Result of GET /users/count. approximate is true when the filtered set was too large to count exactly
+ * and count is the planner's row estimate instead.
+ */
+public record UserCount(long count, boolean approximate) {}
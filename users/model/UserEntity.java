@@ -14,9 +14,6 @@ import com.trademarket.api.security.roles.model.PermissionEntity;
 import com.trademarket.api.security.roles.model.RoleEntity;
 import com.trademarket.api.security.users.addresses.model.AddressEntity;
 import com.trademarket.api.security.users.profiles.model.ProfileEntity;
-import com.trademarket.api.security.users.validation.UniqueEmail;
-import com.trademarket.api.security.users.validation.UniqueMobileNumber;
-import com.trademarket.api.security.users.validation.UniqueUsername;
 
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
@@ -34,12 +31,10 @@ public class UserEntity implements Serializable {
       regexp = "^(?!\\d+$)[A-Za-z0-9][A-Za-z0-9_]{0,29}$",
       message = "Username must be 1-30 chars, start with letter/number, may include underscore, not all digits"
     )
-    @UniqueUsername
     private String username;
 
     @Nullable
     @Email(message = "Email must be a valid format")
-    @UniqueEmail
     @Size(max = 254, message = "Email must be at most 254 characters")
     private String email;
 
@@ -50,7 +45,6 @@ public class UserEntity implements Serializable {
         regexp = "^[1-9]\\d{7,14}$",
         message = "Mobile number must be 8–15 digits and contain only numbers, and must not start with 0"
     ) //Frontend must make sure 0 is omitted at the beginning
-    @UniqueMobileNumber
     private String mobileNumber;
 
     @JsonProperty(access = Access.READ_ONLY) //for security purposes, frontend must not write
@@ -93,11 +87,17 @@ public class UserEntity implements Serializable {
 
     private Instant expiryDate; //measure to given period calculated from accessedAt
 
+    private Long version; //bumped by every conditional update, sent back as the ETag
+
     @Transient
     private ProfileEntity profileEntity;
 
     @Transient 
     private AddressEntity addressEntity;
+
+    @Transient
+    @JsonProperty(access = Access.READ_ONLY) //filled by the users listing, addressEntity is the first of them
+    private List<AddressEntity> addresses;
     public UserEntity(){}
 
     public UserEntity(Long id, String username, String email, String mobileNumber, String countryCode, String password, List<RoleEntity> roles, List<PermissionEntity> permissions, ProfileEntity profileEntity, AddressEntity addressEntity) {
@@ -175,12 +175,18 @@ public class UserEntity implements Serializable {
     public Instant getExpiryDate() { return expiryDate; }
     public void setExpiryDate(Instant expiryDate) { this.expiryDate = expiryDate; }
 
+    public Long getVersion() { return version; }
+    public void setVersion(Long version) { this.version = version; }
+
     public ProfileEntity getProfileEntity(){ return profileEntity; }
     public void setProfileEntity(ProfileEntity profileEntity){ this.profileEntity = profileEntity; }
 
     public AddressEntity getAddressEntity(){ return addressEntity; }
     public void setAddressEntity(AddressEntity addressEntity){ this.addressEntity = addressEntity; }
 
+    public List<AddressEntity> getAddresses() { return addresses; }
+    public void setAddresses(List<AddressEntity> addresses) { this.addresses = addresses; }
+
     @Override
     public String toString() {
         return "UserEntity{" +
@@ -203,8 +209,10 @@ public class UserEntity implements Serializable {
             ", updatedAt=" + updatedAt +
             ", accessedAt=" + accessedAt +
             ", expiryDate=" + expiryDate +
+            ", version=" + version +
             ", profileEntity=" + profileEntity +
             ", addressEntity=" + addressEntity + 
+            ", addresses=" + addresses +
             '}';
     }
 }
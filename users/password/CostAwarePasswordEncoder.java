@@ -0,0 +1,54 @@
+package com.trademarket.api.security.users.password;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+/**
+ * The application's PasswordEncoder with users.password.bcrypt-strength applied: new hashes are bcrypt at that cost,
+ * and {@link #upgradeEncoding} is true for bcrypt hashes below it, so Spring Security's reactive authentication
+ * manager re-encodes the password after the next successful login and stores it through {@link UserPasswordService}.
+ * Only when the wrapped encoder verifies plain bcrypt hashes (checked once); otherwise everything is passed through.
+ */
+final class CostAwarePasswordEncoder implements PasswordEncoder {
+
+    private static final Pattern BCRYPT_COST = Pattern.compile("^(?:\\{bcrypt\\})?\\$2[abxy]?\\$(\\d{2})\\$");
+
+    private final PasswordEncoder delegate;
+    private final BCryptPasswordEncoder bcrypt; // null when the delegate couldn't verify what it produces
+    private final int strength;
+
+    CostAwarePasswordEncoder(PasswordEncoder delegate, int strength) {
+        this.delegate = delegate;
+        this.strength = strength;
+        BCryptPasswordEncoder candidate = new BCryptPasswordEncoder(strength);
+        String probe = "users-password-hashing-probe";
+        this.bcrypt = delegate.matches(probe, candidate.encode(probe)) ? candidate : null;
+    }
+
+    /** false means users.password.bcrypt-strength is not applied, hashes are whatever the wrapped encoder makes */
+    boolean verifiesPlainBcrypt() {
+        return bcrypt != null;
+    }
+
+    @Override
+    public String encode(CharSequence rawPassword) {
+        return bcrypt != null ? bcrypt.encode(rawPassword) : delegate.encode(rawPassword);
+    }
+
+    @Override
+    public boolean matches(CharSequence rawPassword, String encodedPassword) {
+        return delegate.matches(rawPassword, encodedPassword);
+    }
+
+    /* unknown formats are left to the wrapped encoder */
+    @Override
+    public boolean upgradeEncoding(String encodedPassword) {
+        if (delegate.upgradeEncoding(encodedPassword)) return true;
+        if (bcrypt == null || encodedPassword == null) return false;
+        Matcher matcher = BCRYPT_COST.matcher(encodedPassword);
+        return matcher.find() && Integer.parseInt(matcher.group(1)) < strength;
+    }
+}
@@ -0,0 +1,34 @@
+package com.trademarket.api.security.users.password;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+/**
+ * Wraps the application's PasswordEncoder bean in a {@link CostAwarePasswordEncoder}, so the encoder the login path
+ * uses is the one that knows users.password.bcrypt-strength; that is what makes rehash-on-login happen.
+ */
+@Component
+public class PasswordEncoderCostPostProcessor implements BeanPostProcessor {
+
+    private static final Logger log = LoggerFactory.getLogger(PasswordEncoderCostPostProcessor.class);
+
+    private final int strength;
+
+    public PasswordEncoderCostPostProcessor(@Value("${users.password.bcrypt-strength:10}") int strength) {
+        this.strength = strength;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (!(bean instanceof PasswordEncoder encoder) || bean instanceof CostAwarePasswordEncoder) return bean;
+        CostAwarePasswordEncoder wrapped = new CostAwarePasswordEncoder(encoder, strength);
+        if (!wrapped.verifiesPlainBcrypt()) {
+            log.warn("PasswordEncoder '{}' can't verify plain bcrypt hashes, users.password.bcrypt-strength is ignored", beanName);
+        }
+        return wrapped;
+    }
+}
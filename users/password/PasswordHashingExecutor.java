@@ -0,0 +1,127 @@
+package com.trademarket.api.security.users.password;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import com.trademarket.api.security.users.exception.PasswordHashingBusyException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import reactor.core.publisher.Mono;
+
+/**
+ * Runs bcrypt on its own fixed pool (one thread per core by default) with a bounded queue, so signup spikes
+ * can't starve boundedElastic, which the blocking validation still uses. When every thread is busy and the queue
+ * is full the call fails fast with {@link PasswordHashingBusyException} (429) instead of piling up.
+ *
+ * Hashing goes through the application's PasswordEncoder, which {@link PasswordEncoderCostPostProcessor} has already
+ * set to users.password.bcrypt-strength; hashes below that cost are upgraded on the next successful login,
+ * see {@link UserPasswordService}.
+ */
+@Component
+public class PasswordHashingExecutor {
+
+    private static final Pattern BCRYPT_HASH = Pattern.compile("^\\$2[abxy]?\\$\\d{2}\\$[./A-Za-z0-9]{53}$");
+
+    private final ThreadPoolExecutor executor;
+    private final PasswordEncoder encoder;
+    private final boolean plainBcrypt; // the login side verifies plain $2a$ hashes
+
+    private final Counter rejected; // meters are null without a registry
+    private final Timer queueWait;
+    private final Timer hashDuration;
+
+    public PasswordHashingExecutor(
+        PasswordEncoder passwordEncoder,
+        @Value("${users.password.hashing.threads:0}") int threads,
+        @Value("${users.password.hashing.queue-capacity:64}") int queueCapacity,
+        ObjectProvider<MeterRegistry> meterRegistry) {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity),
+            runnable -> {
+                Thread thread = new Thread(runnable, "users-password-hashing-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        this.encoder = passwordEncoder;
+        this.plainBcrypt = passwordEncoder instanceof CostAwarePasswordEncoder costAware && costAware.verifiesPlainBcrypt();
+
+        MeterRegistry registry = meterRegistry.getIfAvailable();
+        this.rejected = registry == null ? null : Counter.builder("users.password.hashing.rejected")
+            .description("Password hashes refused with 429 because the pool and its queue were full")
+            .register(registry);
+        this.queueWait = registry == null ? null : Timer.builder("users.password.hashing.wait")
+            .description("Time a password operation waited in the queue")
+            .register(registry);
+        this.hashDuration = registry == null ? null : Timer.builder("users.password.hashing.duration")
+            .description("Time spent hashing or verifying one password")
+            .register(registry);
+        if (registry != null) {
+            Gauge.builder("users.password.hashing.queue", executor, pool -> pool.getQueue().size())
+                .description("Password operations waiting for a hashing thread")
+                .register(registry);
+            Gauge.builder("users.password.hashing.active", executor, ThreadPoolExecutor::getActiveCount)
+                .description("Hashing threads currently busy")
+                .register(registry);
+        }
+    }
+
+    public Mono<String> encode(String rawPassword) {
+        return submit(() -> encoder.encode(rawPassword));
+    }
+
+    /** a bcrypt hash made elsewhere (bulk imports) that logins can verify as is, so it needs no hashing here */
+    public boolean isVerifiableHash(String password) {
+        return plainBcrypt && password != null && BCRYPT_HASH.matcher(password).matches();
+    }
+
+    /** hashing threads, callers fanning out over many passwords should not keep more than this in flight */
+    public int parallelism() {
+        return executor.getMaximumPoolSize();
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    private <T> Mono<T> submit(Callable<T> work) {
+        return Mono.create(sink -> {
+            long queuedAt = System.nanoTime();
+            try {
+                Future<?> task = executor.submit(() -> {
+                    long startedAt = System.nanoTime();
+                    if (queueWait != null) queueWait.record(startedAt - queuedAt, TimeUnit.NANOSECONDS);
+                    try {
+                        sink.success(work.call());
+                    } catch (Exception e) {
+                        sink.error(e);
+                    } finally {
+                        if (hashDuration != null) hashDuration.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                    }
+                });
+                sink.onCancel(() -> task.cancel(false));
+            } catch (RejectedExecutionException e) {
+                if (rejected != null) rejected.increment();
+                sink.error(new PasswordHashingBusyException("Too many password operations in progress, retry shortly"));
+            }
+        });
+    }
+}
@@ -0,0 +1,58 @@
+package com.trademarket.api.security.users.password;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.security.core.userdetails.ReactiveUserDetailsPasswordService;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Service;
+
+import com.trademarket.api.security.config.model.CustomUserDetails;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Rehash-on-login. Spring Security's reactive authentication manager calls {@link #updatePassword} after a
+ * successful login whenever its PasswordEncoder says the stored hash should be upgraded, which with
+ * {@link CostAwarePasswordEncoder} includes every bcrypt hash below users.password.bcrypt-strength.
+ * The new hash only replaces the exact hash that was verified, so a concurrent password change wins.
+ * A failed upgrade never fails the login, it is simply tried again next time.
+ */
+@Service
+public class UserPasswordService implements ReactiveUserDetailsPasswordService {
+
+    private static final Logger log = LoggerFactory.getLogger(UserPasswordService.class);
+
+    private final DatabaseClient databaseClient;
+    private final InvalidationBus invalidationBus;
+
+    public UserPasswordService(DatabaseClient databaseClient, InvalidationBus invalidationBus) {
+        this.databaseClient = databaseClient;
+        this.invalidationBus = invalidationBus;
+    }
+
+    @Override
+    public Mono<UserDetails> updatePassword(UserDetails user, String newPassword) {
+        if (!(user instanceof CustomUserDetails details)) return Mono.just(user);
+        return replaceHash(details.getId(), user.getPassword(), newPassword)
+            .thenReturn(user);
+    }
+
+    private Mono<Boolean> replaceHash(Long userId, String previousHash, String newHash) {
+        return databaseClient.sql("UPDATE users SET password = :password WHERE id = :id AND password = :previous")
+            .bind("password", newHash)
+            .bind("id", userId)
+            .bind("previous", previousHash)
+            .fetch()
+            .rowsUpdated()
+            .flatMap(rows -> rows > 0
+                ? invalidationBus.publish(InvalidationEvent.Type.USER, userId).thenReturn(true)
+                : Mono.just(false))
+            .onErrorResume(e -> {
+                log.warn("Password rehash for user {} skipped: {}", userId, e.getMessage());
+                return Mono.just(false);
+            });
+    }
+}
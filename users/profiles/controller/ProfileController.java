@@ -3,17 +3,21 @@ package com.trademarket.api.security.users.profiles.controller;
 import java.time.Instant;
 import java.util.Map;
 
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
 
 import com.trademarket.api.exceptions.ValidationException;
+import com.trademarket.api.security.users.controller.Versions;
+import com.trademarket.api.security.users.exception.VersionConflictException;
 import com.trademarket.api.security.users.profiles.model.ProfileEntity;
 import com.trademarket.api.security.users.profiles.repository.ProfileRepository;
 import com.trademarket.api.security.users.profiles.service.ProfileService;
@@ -35,8 +39,9 @@ public class ProfileController {
         this.userRepository = userRepository;
     }
 
+    /* the ETag is the new profile's version, for the If-Match of its first PATCH */
     @PostMapping
-    public Mono<ProfileEntity> createProfile(@RequestBody ProfileEntity profileEntity) {
+    public Mono<ResponseEntity<ProfileEntity>> createProfile(@RequestBody ProfileEntity profileEntity) {
         System.out.println("profileEntity: " + profileEntity);
         Instant now = Instant.now();
         // Check userId is provided
@@ -60,18 +65,25 @@ public class ProfileController {
                             return profileService.save(profileEntity);
                         });
                 }
-            });
+            })
+            .map(savedProfile -> ResponseEntity.ok().eTag(Versions.etag(savedProfile.getVersion())).body(savedProfile));
     }
 
 
+    /* If-Match: "<version>" (or "version" in the body) makes it conditional, 409 if the profile changed since */
     @PatchMapping("/{user_id}")
-    public Mono<ResponseEntity<Object>> updateProfile(@PathVariable Long user_id, @RequestBody Map<String, Object> updates) {
-        return profileRepository.findIdByUserId(user_id)
-            .flatMap(profileEntity -> 
-                profileService.updateProfile(profileEntity, updates)
-                    .map(updatedProfile -> ResponseEntity.ok((Object) updatedProfile)))
+    public Mono<ResponseEntity<Object>> updateProfile(
+        @PathVariable Long user_id,
+        @RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch,
+        @RequestBody Map<String, Object> updates) {
+        Long version = Versions.expected(ifMatch, updates);
+        return profileService.updateProfile(user_id, version, updates)
+            .map(updatedProfile -> ResponseEntity.ok().eTag(Versions.etag(updatedProfile.getVersion())).body((Object) updatedProfile))
             .onErrorResume(ValidationException.class, ex -> {
                 return Mono.just(ResponseEntity.badRequest().body(ex.getErrors()));})
+            .onErrorResume(VersionConflictException.class, ex -> Mono.just(ResponseEntity.status(HttpStatus.CONFLICT)
+                .eTag(Versions.etag(ex.getCurrentVersion()))
+                .body(ex.getMessage())))
             .switchIfEmpty(Mono.just(ResponseEntity.status(HttpStatus.NOT_FOUND).body("User not found")));
     }
 }
\ No newline at end of file
@@ -6,8 +6,6 @@ import org.springframework.data.annotation.Id;
 import org.springframework.data.relational.core.mapping.Column;
 import org.springframework.data.relational.core.mapping.Table;
 
-import com.trademarket.api.security.users.profiles.validation.UniqueUserId;
-
 import jakarta.annotation.Nonnull;
 import jakarta.annotation.Nullable;
 import jakarta.validation.Valid;
@@ -22,7 +20,6 @@ public class ProfileEntity {
     private Long id;
 
     @NotNull(message = "User ID is required")
-    @UniqueUserId //user can create multiple profiles
     private Long userId;
 
     @Size(max = 50, message = "Fist name must be at most 50 characters")
@@ -59,6 +56,8 @@ public class ProfileEntity {
 
     private Instant updatedAt, accessedAt;
 
+    private Long version; //bumped by every conditional update, sent back as the ETag
+
     public ProfileEntity() {}
 
     public ProfileEntity(Long id, Long userId, String firstname, String lastname, String profilePicture, String bio,
@@ -111,6 +110,9 @@ public class ProfileEntity {
     public Instant getAccessedAt() { return accessedAt; }
     public void setAccessedAt(Instant accessedAt) { this.accessedAt = accessedAt; }
 
+    public Long getVersion() { return version; }
+    public void setVersion(Long version) { this.version = version; }
+
     @Override
     public String toString() {
         return "Profile{" +
@@ -126,6 +128,7 @@ public class ProfileEntity {
                 ", createdAt=" + createdAt +
                 ", updatedAt=" + updatedAt +
                 ", accessedAt=" + accessedAt +
+                ", version=" + version +
                 '}';
     }
 }
@@ -6,12 +6,16 @@ import java.util.Map;
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 
-import com.trademarket.api.security.generics.CustomRepository;
+import com.trademarket.api.exceptions.ValidationException;
 import com.trademarket.api.security.generics.CustomValidation;
 import com.trademarket.api.security.generics.conversion.JsonConversion;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.mapping.ConditionalUpdate;
 import com.trademarket.api.security.users.profiles.model.Preferences;
 import com.trademarket.api.security.users.profiles.model.ProfileEntity;
 import com.trademarket.api.security.users.profiles.model.Settings;
+import com.trademarket.api.security.users.sql.SqlTemplateCache;
 
 import io.r2dbc.postgresql.codec.Json;
 import reactor.core.publisher.Mono;
@@ -22,12 +26,18 @@ public class ProfileService {
 
     private final DatabaseClient databaseClient;
     private final CustomValidation<ProfileEntity> customValidation;
-    private final CustomRepository<ProfileEntity, Long> customRepository;
+    private final SqlTemplateCache sqlTemplates;
+    private final InvalidationBus invalidationBus;
 
-    public ProfileService(DatabaseClient databaseClient, CustomValidation<ProfileEntity> customValidation, CustomRepository<ProfileEntity, Long> customRepository) {
+    // PATCH /profiles/{user_id}: one profile per user, so the user id is the key
+    ConditionalUpdate<ProfileEntity> profileUpdate = ConditionalUpdate.of(ProfileEntity.class, "profiles", "user_id")
+        .without("userId", "createdAt");
+
+    public ProfileService(DatabaseClient databaseClient, CustomValidation<ProfileEntity> customValidation, SqlTemplateCache sqlTemplates, InvalidationBus invalidationBus) {
         this.databaseClient = databaseClient;
         this.customValidation = customValidation;
-        this.customRepository = customRepository;
+        this.sqlTemplates = sqlTemplates;
+        this.invalidationBus = invalidationBus;
     }
  
     public Mono<ProfileEntity> save(ProfileEntity profile) {
@@ -35,6 +45,7 @@ public class ProfileService {
                customValidation.validateAll(profile);
                 return profile;
             }).subscribeOn(Schedulers.boundedElastic())
+            .flatMap(validatedProfile -> verifyNoProfile(validatedProfile.getUserId()))
             .then(
                 bindValuesToSpec(databaseClient.sql("""
                         INSERT INTO profiles (
@@ -42,7 +53,7 @@ public class ProfileService {
                         ) VALUES (
                             :user_id, :firstname, :lastname, :profile_picture, :bio, :website, :preferences, :settings, :created_at, :updated_at, :accessed_at
                         )
-                        RETURNING id, user_id, firstname, lastname, profile_picture, bio, website, preferences, settings, created_at, updated_at, accessed_at
+                        RETURNING id, user_id, firstname, lastname, profile_picture, bio, website, preferences, settings, created_at, updated_at, accessed_at, version
                     """), profile)
                     .map((row, _) -> {
                         ProfileEntity savedProfileEntity = new ProfileEntity(
@@ -59,12 +70,23 @@ public class ProfileService {
                         savedProfileEntity.setCreatedAt(row.get("created_at", Instant.class));
                         savedProfileEntity.setUpdatedAt(row.get("updated_at", Instant.class));
                         savedProfileEntity.setAccessedAt(row.get("accessed_at", Instant.class));
+                        savedProfileEntity.setVersion(row.get("version", Long.class));
                         return savedProfileEntity;
                     })
                     .one()
+                    .flatMap(savedProfileEntity -> invalidationBus.publish(InvalidationEvent.Type.PROFILE, savedProfileEntity.getId()).thenReturn(savedProfileEntity))
             );
     }
     
+    /** one profile per user, checked without blocking (this used to be the @UniqueUserId constraint) */
+    private Mono<Void> verifyNoProfile(Long userId) {
+        return databaseClient.sql("SELECT EXISTS (SELECT 1 FROM profiles WHERE user_id = :userId) AS taken")
+            .bind("userId", userId)
+            .map((row, _) -> Boolean.TRUE.equals(row.get("taken", Boolean.class)))
+            .one()
+            .flatMap(taken -> taken ? Mono.<Void>error(new ValidationException(Map.of("userId", "User already exists"))) : Mono.empty());
+    }
+
     private DatabaseClient.GenericExecuteSpec bindValuesToSpec(DatabaseClient.GenericExecuteSpec spec, ProfileEntity profile) {
         spec = bindOrNull(spec, "user_id", profile.getUserId(), Long.class);
         spec = bindOrNull(spec, "firstname", profile.getFirstname(), String.class);
@@ -84,19 +106,17 @@ public class ProfileService {
         return value != null ? spec.bind(key, value) : spec.bindNull(key, type);
     }
 
-    public Mono<Object> updateProfile(ProfileEntity profileEntity, Map<String, Object> updates) {
+    /** empty when the user has no profile; VersionConflictException if it changed since version (null: unconditional) */
+    public Mono<ProfileEntity> updateProfile(Long userId, Long version, Map<String, Object> updates) {
         updates.put("updatedAt", Instant.now());
         updates.put("accessedAt", Instant.now());
         return Mono.fromCallable(() -> {
-                customValidation.validate(profileEntity, updates);
-                return profileEntity;
+                customValidation.validate(new ProfileEntity(), updates);
+                return updates;
             })
             .subscribeOn(Schedulers.boundedElastic())
-            .flatMap(validatedProfile -> {
-                Long id = validatedProfile.getId(); 
-                if (id == null) return Mono.error(new IllegalArgumentException("Profile ID cannot be null for update"));
-                return customRepository.updateFields(id, updates, ProfileEntity.class, validatedProfile);
-            });
+            .flatMap(validatedUpdates -> profileUpdate.execute(databaseClient, sqlTemplates, userId, version, validatedUpdates))
+            .flatMap(updatedProfile -> invalidationBus.publish(InvalidationEvent.Type.PROFILE, updatedProfile.getId()).thenReturn(updatedProfile));
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.trademarket.api.security.users.repository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.trademarket.api.security.roles.model.PermissionEntity;
+import com.trademarket.api.security.roles.model.RoleEntity;
+
+import io.r2dbc.postgresql.codec.Json;
+import io.r2dbc.spi.Row;
+
+/**
+ * Decodes the roles/permissions jsonb aggregates of the users listing.
+ * Readers are resolved once, rows are parsed straight from the driver's bytes (no intermediate String),
+ * and a {@link Page} hands out one shared instance per role/permission id for the whole result,
+ * a page of 500 users with the same 5 roles keeps 5 RoleEntity objects alive instead of 2,500.
+ */
+final class AuthorityJsonDecoder {
+
+    private final ObjectReader roleReader;
+    private final ObjectReader permissionReader;
+
+    AuthorityJsonDecoder(ObjectMapper objectMapper) {
+        this.roleReader = objectMapper.readerFor(new TypeReference<List<RoleEntity>>() {});
+        this.permissionReader = objectMapper.readerFor(new TypeReference<List<PermissionEntity>>() {});
+    }
+
+    /* one per query subscription, rows of a result are mapped sequentially so plain maps are enough */
+    Page newPage() {
+        return new Page();
+    }
+
+    final class Page {
+
+        private final Map<Integer, RoleEntity> roles = new HashMap<>();
+        private final Map<Integer, PermissionEntity> permissions = new HashMap<>();
+
+        private Page() {}
+
+        List<RoleEntity> roles(Row row) {
+            List<RoleEntity> decoded = read(roleReader, row, "roles");
+            decoded.replaceAll(role -> roles.computeIfAbsent(role.getId(), _ -> role));
+            return decoded;
+        }
+
+        List<PermissionEntity> permissions(Row row) {
+            List<PermissionEntity> decoded = read(permissionReader, row, "permissions");
+            decoded.replaceAll(permission -> permissions.computeIfAbsent(permission.getId(), _ -> permission));
+            return decoded;
+        }
+    }
+
+    private static <T> List<T> read(ObjectReader reader, Row row, String column) {
+        Json json = row.get(column, Json.class);
+        if (json == null) return new ArrayList<>();
+        try {
+            return reader.readValue(json.asArray());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to map transient fields", e);
+        }
+    }
+}
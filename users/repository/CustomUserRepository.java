@@ -1,13 +1,21 @@
 package com.trademarket.api.security.users.repository;
 
+import java.util.Set;
+
+import com.trademarket.api.security.users.model.UserCount;
 import com.trademarket.api.security.users.model.UserEntity;
 
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 public interface CustomUserRepository {
 
-    Flux<UserEntity> findAllPaginated(Long cursor, Integer size, String sortBy, String direction, String search, 
-                        String country, String city, String region, String street);
+    Flux<UserEntity> findAllPaginated(UserCursor cursor, Integer size, UserSort sort, String direction, UserFilter filter,
+                        Set<String> fields, Set<UserInclude> include);
+
+    Flux<UserEntity> streamAll(UserSort sort, String direction, UserFilter filter, Set<String> fields, Set<UserInclude> include);
+
+    Mono<UserCount> count(UserFilter filter);
 
 }
 
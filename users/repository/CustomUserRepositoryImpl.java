@@ -1,31 +1,74 @@
 package com.trademarket.api.security.users.repository;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Repository;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.trademarket.api.security.generics.RowMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.trademarket.api.security.users.addresses.model.AddressEntity;
+import com.trademarket.api.security.users.cache.SingleFlight;
+import com.trademarket.api.security.users.mapping.CompiledRowMapper;
+import com.trademarket.api.security.users.mapping.ProjectionBuilder;
+import com.trademarket.api.security.users.mapping.RowMapperFactory;
+import com.trademarket.api.security.users.model.UserCount;
 import com.trademarket.api.security.users.model.UserEntity;
 import com.trademarket.api.security.users.profiles.model.ProfileEntity;
+import com.trademarket.api.security.users.sql.SqlTemplateCache;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.r2dbc.postgresql.codec.Json;
+import io.r2dbc.spi.Row;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 @Repository
 public class CustomUserRepositoryImpl implements CustomUserRepository{
 
+    private static final int STREAM_FETCH_SIZE = 500;
+    private static final long EXACT_COUNT_THRESHOLD = 10_000;
+
     private final DatabaseClient databaseClient;
     private final ObjectMapper objectMapper;
+    private final AuthorityJsonDecoder authorityDecoder;
+    private final SqlTemplateCache sqlTemplates;
+
+    private final AsyncCache<UserFilter, UserCount> countCache = Caffeine.newBuilder()
+        .expireAfterWrite(Duration.ofSeconds(30))
+        .maximumSize(10_000)
+        .buildAsync();
+
+    // users, profiles and addresses all have id, user_id, created_at..., so the listing aliases each table's columns
+    private static final ProjectionBuilder USER_COLUMNS = ProjectionBuilder.of(UserEntity.class).without("password");
+    private static final ProjectionBuilder PROFILE_COLUMNS = ProjectionBuilder.of(ProfileEntity.class);
+    private static final ProjectionBuilder ADDRESS_COLUMNS = ProjectionBuilder.of(AddressEntity.class);
+
+    private final ObjectReader addressReader;
 
-    RowMapper<UserEntity> userMapper = new RowMapper<>(UserEntity.class);
-    RowMapper<ProfileEntity> profileMapper = new RowMapper<>(ProfileEntity.class);
-    RowMapper<AddressEntity> addressMapper = new RowMapper<>(AddressEntity.class);
+    CompiledRowMapper<UserEntity> userMapper = RowMapperFactory.of(UserEntity.class).prefixed("u_");
+    CompiledRowMapper<ProfileEntity> profileMapper = RowMapperFactory.of(ProfileEntity.class).prefixed("p_");
+    CompiledRowMapper<AddressEntity> addressMapper = RowMapperFactory.of(AddressEntity.class); // copies only, addresses come as jsonb
 
-    public CustomUserRepositoryImpl(DatabaseClient databaseClient, ObjectMapper objectMapper) {
+    private final SingleFlight<PageKey, List<UserEntity>> pageFlight;
+
+    public CustomUserRepositoryImpl(DatabaseClient databaseClient, ObjectMapper objectMapper, SqlTemplateCache sqlTemplates, ObjectProvider<MeterRegistry> meterRegistry) {
         this.databaseClient = databaseClient;
+        this.pageFlight = new SingleFlight<>("users.page", meterRegistry.getIfAvailable());
         this.objectMapper = objectMapper;
+        this.authorityDecoder = new AuthorityJsonDecoder(objectMapper);
+        this.addressReader = objectMapper.readerFor(new TypeReference<List<AddressEntity>>() {});
+        this.sqlTemplates = sqlTemplates;
     }
 
     /* DO NOT DELETE
@@ -48,136 +91,257 @@ public class CustomUserRepositoryImpl implements CustomUserRepository{
      because json is not set for camel case
      */
     @Override
-    public Flux<UserEntity> findAllPaginated(Long cursor, Integer size, String sortBy, String direction, String search, String country, String city, String region, String street) {
-
-        StringBuilder sql = new StringBuilder("""
-            SELECT
-            users.*,
-            profiles.*,
-            addresses.*,
-            COALESCE(
-                jsonb_agg(DISTINCT jsonb_build_object(
-                'id',           r.id,
-                'name',         r.name,
-                'description',  r.description,
-                'createdAt',    r.created_at,
-                'updatedAt',    r.updated_at,
-                'accessedAt',   r.accessed_at
-                )) FILTER (WHERE r.id IS NOT NULL),
-                '[]'::jsonb
-            ) AS roles,
-            COALESCE(
-                jsonb_agg(DISTINCT jsonb_build_object(
-                'id',           p.id,
-                'name',         p.name,
-                'description',  p.description,
-                'createdAt',    p.created_at,
-                'updatedAt',    p.updated_at,
-                'accessedAt',   p.accessed_at
-                )) FILTER (WHERE p.id IS NOT NULL),
-                '[]'::jsonb
-            ) AS permissions
-            FROM users
-            LEFT JOIN profiles         ON users.id = profiles.user_id
-            LEFT JOIN addresses        ON users.id = addresses.user_id
-            LEFT JOIN user_roles       ur   ON users.id = ur.user_id
-            LEFT JOIN roles            r    ON ur.role_id = r.id
-            LEFT JOIN user_permissions up   ON users.id = up.user_id
-            LEFT JOIN permissions      p    ON up.permission_id = p.id
-            """);
+    public Flux<UserEntity> findAllPaginated(UserCursor cursor, Integer size, UserSort sort, String direction, UserFilter filter,
+                                             Set<String> fields, Set<UserInclude> include) {
+        // without a size the page is the whole (filtered) table, too big to hold once for several callers
+        if (size == null) return select(cursor, null, sort, direction, filter, fields, include, null);
+        // identical pages requested concurrently (a shared link, a dashboard refresh) share one query
+        PageKey key = new PageKey(cursor != null ? cursor.encode() : null, size, sort, direction, filter, fields, include);
+        return SingleFlight.executeMany(pageFlight, key, () -> select(cursor, size, sort, direction, filter, fields, include, null), this::copy);
+    }
 
-        boolean hasWhere = false;
+    /* a coalesced page row for one caller; role and permission entities are already shared between the rows of a page */
+    private UserEntity copy(UserEntity user) {
+        UserEntity copy = userMapper.copy(user);
+        if (user.getRoles() != null) copy.setRoles(new ArrayList<>(user.getRoles()));
+        if (user.getPermissions() != null) copy.setPermissions(new ArrayList<>(user.getPermissions()));
+        if (user.getProfileEntity() != null) copy.setProfileEntity(profileMapper.copy(user.getProfileEntity()));
+        if (user.getAddresses() != null) {
+            copy.setAddresses(new ArrayList<>(user.getAddresses().stream().map(addressMapper::copy).toList()));
+            copy.setAddressEntity(copy.getAddresses().isEmpty() ? null : copy.getAddresses().get(0));
+        }
+        return copy;
+    }
 
-        // --- WHERE clauses ---
+    /* no LIMIT, rows are pulled from a server-side portal STREAM_FETCH_SIZE at a time as the subscriber requests them */
+    @Override
+    public Flux<UserEntity> streamAll(UserSort sort, String direction, UserFilter filter,
+                                      Set<String> fields, Set<UserInclude> include) {
+        return select(null, null, sort, direction, filter, fields, include, STREAM_FETCH_SIZE);
+    }
+
+    private Flux<UserEntity> select(UserCursor cursor, Integer size, UserSort sort, String direction, UserFilter filter,
+                                    Set<String> fields, Set<UserInclude> include, Integer fetchSize) {
+
+        UserSort safeSort = sort != null ? sort : UserSort.ID;
+        EnumSet<UserInclude> parts = include == null ? EnumSet.allOf(UserInclude.class) : EnumSet.noneOf(UserInclude.class);
+        if (include != null) parts.addAll(include);
+        if (safeSort.isProfileSort()) parts.add(UserInclude.PROFILE); // the outer ORDER BY and the cursor key need it
+
+        UserQueryShape shape = new UserQueryShape(
+            cursor != null,
+            filter.shape(),
+            safeSort,
+            "DESC".equalsIgnoreCase(direction),
+            size != null,
+            fields,
+            parts);
+        String sql = sqlTemplates.get(shape, () -> buildSql(shape));
+
+        // **NOW** create the spec _after_ you have the final SQL string
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql);
+
+        // bind parameters
         if (cursor != null) {
-            sql.append(" WHERE users.id > :cursor ");
-            hasWhere = true;
-        }
-        if (search != null && !search.isBlank()) {
-            sql.append(hasWhere ? " AND " : " WHERE ")
-                .append("""
-                (
-                    to_tsvector('simple', coalesce(users.username,'')) 
-                    @@ to_tsquery('simple', :searchQuery || ':*')
-                    OR
-                    to_tsvector('simple',
-                    coalesce(profiles.firstname,'') || ' ' || coalesce(profiles.lastname,'')
-                    ) @@ to_tsquery('simple', :searchQuery || ':*')
-                )
-                """);
-            hasWhere = true;
-        }
-        if (country != null && !country.isBlank()) {
-            sql.append(hasWhere ? " AND " : " WHERE ")
-                .append(" country ILIKE '%'||TRIM(:country)||'%' ");
-            hasWhere = true;
-        }
-        if (city != null && !city.isBlank()) {
-            sql.append(hasWhere ? " AND " : " WHERE ")
-                .append(" city ILIKE '%'||TRIM(:city)||'%' ");
-            hasWhere = true;
+            spec = spec.bind("cursorId", cursor.getId());
+            if (shape.sort() != UserSort.ID) spec = spec.bind("cursorKey", cursor.getKey());
         }
-        if (region != null && !region.isBlank()) {
-            sql.append(hasWhere ? " AND " : " WHERE ")
-                .append(" region ILIKE '%'||TRIM(:region)||'%' ");
-            hasWhere = true;
+        spec = filter.bind(spec);
+        if (size != null) spec = spec.bind("limit", size);
+        if (fetchSize != null) spec = spec.filter(statement -> statement.fetchSize(fetchSize));
+
+        DatabaseClient.GenericExecuteSpec query = spec;
+        return Flux.defer(() -> {
+            AuthorityJsonDecoder.Page authorities = authorityDecoder.newPage();
+            return query.map((row, _) -> {
+                UserEntity user = userMapper.map(row); // only the selected fields are in the row
+
+                // Manually map transient fields (roles, permissions, etc.)
+                if (shape.includes(UserInclude.ROLES)) user.setRoles(authorities.roles(row));
+                if (shape.includes(UserInclude.PERMISSIONS)) user.setPermissions(authorities.permissions(row));
+
+                if (shape.includes(UserInclude.PROFILE)) user.setProfileEntity(profileMapper.mapJoined(row));
+                if (shape.includes(UserInclude.ADDRESS)) {
+                    user.setAddresses(addresses(row));
+                    user.setAddressEntity(user.getAddresses().isEmpty() ? null : user.getAddresses().get(0));
+                }
+                return user;
+
+            }).all();
+        });
+    }
+
+    /* the jsonb_agg of the user's (matching) addresses, parsed straight from the driver's bytes like the authorities */
+    private List<AddressEntity> addresses(Row row) {
+        Json json = row.get("addresses", Json.class);
+        if (json == null) return new ArrayList<>();
+        try {
+            return addressReader.readValue(json.asArray());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to map addresses", e);
         }
-        if (street != null && !street.isBlank()) {
-            sql.append(hasWhere ? " AND " : " WHERE ")
-                .append(" street ILIKE '%'||TRIM(:street)||'%' ");
+    }
+
+    /*
+     * Exact up to EXACT_COUNT_THRESHOLD: the capped count stops scanning after threshold + 1 matches.
+     * Past that the planner's row estimate for the same WHERE is returned, flagged approximate.
+     * Repeated filter combinations are answered from a short-lived cache.
+     */
+    @Override
+    public Mono<UserCount> count(UserFilter filter) {
+        return Mono.fromFuture(countCache.get(filter, (key, _) -> countUncached(key).toFuture()));
+    }
+
+    private Mono<UserCount> countUncached(UserFilter filter) {
+        CountShape exactShape = new CountShape(filter.shape(), false);
+        String exactSql = sqlTemplates.get(exactShape, () -> buildCountSql(exactShape));
+        return filter.bind(databaseClient.sql(exactSql))
+            .bind("cap", EXACT_COUNT_THRESHOLD + 1)
+            .map((row, _) -> row.get("total", Long.class))
+            .one()
+            .flatMap(total -> total <= EXACT_COUNT_THRESHOLD
+                ? Mono.just(new UserCount(total, false))
+                : estimate(filter).map(estimated -> new UserCount(Math.max(estimated, total), true)));
+    }
+
+    private Mono<Long> estimate(UserFilter filter) {
+        CountShape estimateShape = new CountShape(filter.shape(), true);
+        String explainSql = sqlTemplates.get(estimateShape, () -> buildCountSql(estimateShape));
+        return filter.bind(databaseClient.sql(explainSql))
+            .map((row, _) -> row.get(0, String.class))
+            .one()
+            .map(plan -> {
+                try {
+                    return objectMapper.readTree(plan).path(0).path("Plan").path("Plan Rows").asLong();
+                } catch (JsonProcessingException e) {
+                    throw new RuntimeException("Failed to read the count estimate", e);
+                }
+            });
+    }
+
+    private String buildCountSql(CountShape shape) {
+        StringBuilder where = new StringBuilder();
+        shape.filter().appendWhere(where, false);
+        if (shape.estimate()) {
+            return "EXPLAIN (FORMAT JSON) SELECT 1 FROM users " + where;
         }
+        return "SELECT count(*) AS total FROM (SELECT 1 FROM users " + where + " LIMIT :cap) capped";
+    }
 
-        // --- GROUP BY (must come before ORDER BY / LIMIT) ---
-        sql.append(" GROUP BY users.id, profiles.id, addresses.id ");
-
-        // --- ORDER BY ---
-        if (sortBy != null && !sortBy.isBlank()) {
-            String safeSortBy = switch (sortBy) {
-                case "id", "created_at", "username", "email" -> "users." + sortBy;
-                case "firstname" -> "profiles.firstname";
-                case "lastname" -> "profiles.lastname";
-                case "fullname" -> "(profiles.firstname || ' ' || profiles.lastname)";
-                default -> "users.id";
-            };
-            String safeDir = "DESC".equalsIgnoreCase(direction) ? "DESC" : "ASC";
-            sql.append(" ORDER BY ").append(safeSortBy).append(" ").append(safeDir).append(" ");
+    /* only ever called once per shape, everything value dependent goes through bind parameters */
+    private String buildSql(UserQueryShape shape) {
+        // --- ORDER BY: the sort key with users.id as tiebreaker, the same pair the keyset cursor compares ---
+        UserSort safeSort = shape.sort();
+        String safeDir = shape.descending() ? "DESC" : "ASC";
+        String orderBy = " ORDER BY " + safeSort.expression() + " " + safeDir
+            + (safeSort == UserSort.ID ? " " : ", users.id " + safeDir + " ");
+
+        // --- page of users first: profiles is 1:1 so it never multiplies rows, addresses only narrow via EXISTS ---
+        StringBuilder page = new StringBuilder("SELECT ").append(USER_COLUMNS.columns("users", "", shape.fields())).append(" FROM users ");
+        if (safeSort.isProfileSort()) page.append(" LEFT JOIN profiles ON users.id = profiles.user_id ");
+
+        boolean hasWhere = false;
+
+        // --- WHERE clauses ---
+        if (shape.hasCursor()) {
+            String comparison = "DESC".equals(safeDir) ? " < " : " > ";
+            if (safeSort == UserSort.ID) {
+                page.append(" WHERE users.id").append(comparison).append(":cursorId ");
+            } else {
+                page.append(" WHERE (").append(safeSort.expression()).append(", users.id)")
+                    .append(comparison).append("(:cursorKey, :cursorId) ");
+            }
+            hasWhere = true;
         }
+        shape.filter().appendWhere(page, hasWhere);
+        page.append(orderBy);
 
         // --- LIMIT ---
-        if (size != null) {
-            sql.append(" LIMIT :limit ");
+        if (shape.hasLimit()) {
+            page.append(" LIMIT :limit ");
         }
 
-        // **NOW** create the spec _after_ you have the final SQL string
-        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sql.toString());
-
-        // bind parameters
-        if (cursor != null) spec = spec.bind("cursor", cursor);
-        if (search != null && !search.isBlank()) spec = spec.bind("searchQuery", search);
-        if (country != null && !country.isBlank()) spec = spec.bind("country", country);
-        if (city != null && !city.isBlank()) spec = spec.bind("city", city);
-        if (region != null && !region.isBlank()) spec = spec.bind("region", region);
-        if (street != null && !street.isBlank()) spec = spec.bind("street", street);
-        if (size != null) spec = spec.bind("limit", size);
-
-                return spec.map((row, _) -> {
-                    UserEntity user = userMapper.map(row);
+        // --- then only the requested parts, each aggregated per paged user, no cross product between them ---
+        StringBuilder sql = new StringBuilder("SELECT ").append(USER_COLUMNS.columns("users", "u_", shape.fields()));
+        if (shape.includes(UserInclude.PROFILE)) sql.append(", ").append(PROFILE_COLUMNS.columns("profiles", "p_"));
+        if (shape.includes(UserInclude.ADDRESS)) sql.append(", address_agg.addresses");
+        if (shape.includes(UserInclude.ROLES)) sql.append(", role_agg.roles");
+        if (shape.includes(UserInclude.PERMISSIONS)) sql.append(", permission_agg.permissions");
+        sql.append(" FROM (").append(page).append(") users ");
 
-                    // Manually map transient fields (roles, permissions, etc.)
-                    String rolesJson = row.get("roles", String.class);
-                    String permsJson = row.get("permissions", String.class);
+        if (shape.includes(UserInclude.PROFILE)) {
+            sql.append(" LEFT JOIN profiles ON users.id = profiles.user_id ");
+        }
+        if (shape.includes(UserInclude.ADDRESS)) {
+            sql.append("""
+            LEFT JOIN LATERAL (
+                SELECT COALESCE(jsonb_agg(%s ORDER BY addresses.id), '[]'::jsonb) AS addresses
+                FROM addresses
+                WHERE addresses.user_id = users.id
+            """.formatted(ADDRESS_COLUMNS.jsonObject("addresses")));
+            shape.filter().appendAddressPredicates(sql);
+            sql.append("""
+            ) address_agg ON TRUE
+            """);
+        }
+        if (shape.includes(UserInclude.ROLES)) {
+            sql.append("""
+            LEFT JOIN LATERAL (
+                SELECT COALESCE(
+                    jsonb_agg(jsonb_build_object(
+                    'id',           r.id,
+                    'name',         r.name,
+                    'description',  r.description,
+                    'createdAt',    r.created_at,
+                    'updatedAt',    r.updated_at,
+                    'accessedAt',   r.accessed_at
+                    ) ORDER BY r.id),
+                    '[]'::jsonb
+                ) AS roles
+                FROM (
+                    SELECT DISTINCT r.*
+                    FROM user_roles ur
+                    JOIN roles r ON ur.role_id = r.id
+                    WHERE ur.user_id = users.id
+                ) r
+            ) role_agg ON TRUE
+            """);
+        }
+        if (shape.includes(UserInclude.PERMISSIONS)) {
+            sql.append("""
+            LEFT JOIN LATERAL (
+                SELECT COALESCE(
+                    jsonb_agg(jsonb_build_object(
+                    'id',           p.id,
+                    'name',         p.name,
+                    'description',  p.description,
+                    'createdAt',    p.created_at,
+                    'updatedAt',    p.updated_at,
+                    'accessedAt',   p.accessed_at
+                    ) ORDER BY p.id),
+                    '[]'::jsonb
+                ) AS permissions
+                FROM (
+                    SELECT DISTINCT p.*
+                    FROM user_permissions up
+                    JOIN permissions p ON up.permission_id = p.id
+                    WHERE up.user_id = users.id
+                ) p
+            ) permission_agg ON TRUE
+            """);
+        }
+        sql.append(orderBy);
+        return sql.toString();
+    }
 
-                    try {
-                        user.setRoles(objectMapper.readValue(rolesJson, new TypeReference<>() {}));
-                        user.setPermissions(objectMapper.readValue(permsJson, new TypeReference<>() {}));
-                    } catch (JsonProcessingException e) {
-                        throw new RuntimeException("Failed to map transient fields", e);
-                    }
+    /* cache key for the generated SQL, one entry per combination of active filters, sort and direction */
+    private record UserQueryShape(boolean hasCursor, UserFilter.Shape filter, UserSort sort, boolean descending, boolean hasLimit,
+                                  Set<String> fields, Set<UserInclude> include) {
+        boolean includes(UserInclude part) { return include.contains(part); }
+    }
 
-                    user.setProfileEntity(profileMapper.map(row));   // Optional: use a RowMapper<ProfileEntity>
-                    user.setAddressEntity(addressMapper.map(row));   // Optional: use a RowMapper<AddressEntity>
-                    return user;
+    private record PageKey(String cursor, Integer size, UserSort sort, String direction, UserFilter filter,
+                           Set<String> fields, Set<UserInclude> include) {}
 
-                }).all();
-            }
+    private record CountShape(UserFilter.Shape filter, boolean estimate) {}
 }
@@ -0,0 +1,53 @@
+package com.trademarket.api.security.users.repository;
+
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+import com.trademarket.api.security.users.model.UserEntity;
+
+/**
+ * Opaque keyset cursor for GET /users: the last row's sort key plus its id, base64url encoded.
+ * Clients only ever echo back the nextCursor they were given.
+ */
+public final class UserCursor {
+
+    private final UserSort sort;
+    private final Long id;
+    private final Object key;
+
+    private UserCursor(UserSort sort, Long id, Object key) {
+        this.sort = sort;
+        this.id = id;
+        this.key = key;
+    }
+
+    public static UserCursor after(UserSort sort, UserEntity lastUser) {
+        return new UserCursor(sort, lastUser.getId(), sort.keyOf(lastUser));
+    }
+
+    /** @throws IllegalArgumentException if the token is malformed or was issued for another sortBy */
+    public static UserCursor decode(String token, UserSort expectedSort) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            String[] parts = decoded.split("\n", 3); // key last, it is the only part that may contain anything
+            if (parts.length != 3) throw new IllegalArgumentException("Malformed cursor");
+            UserSort sort = UserSort.from(parts[0]);
+            if (sort != expectedSort || !sort.param().equals(parts[0])) {
+                throw new IllegalArgumentException("Cursor was issued for sortBy=" + parts[0]);
+            }
+            return new UserCursor(sort, Long.valueOf(parts[1]), sort.parseKey(parts[2]));
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + e.getMessage(), e);
+        }
+    }
+
+    public String encode() {
+        String raw = sort.param() + "\n" + id + "\n" + key;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public UserSort getSort() { return sort; }
+    public Long getId() { return id; }
+    public Object getKey() { return key; }
+}
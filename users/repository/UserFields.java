@@ -0,0 +1,37 @@
+package com.trademarket.api.security.users.repository;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Whitelist of users columns selectable through GET /users?fields=, by JSON property name.
+ * password is deliberately not selectable. The select list and the mapping come from
+ * {@link com.trademarket.api.security.users.mapping.ProjectionBuilder} and the prefixed user mapper.
+ */
+public final class UserFields {
+
+    private static final Set<String> FIELDS = Set.of(
+        "id", "username", "email", "emailVerified", "mobileNumber", "mobileNumberVerified", "countryCode",
+        "active", "accountNonExpired", "accountNonLocked", "credentialsNonExpired",
+        "createdAt", "updatedAt", "accessedAt", "expiryDate", "version");
+
+    private UserFields() {}
+
+    /**
+     * null/absent means all columns. id and the field backing the sort are always added,
+     * paging and the keyset cursor need them. Sorted so equal selections make equal query shapes.
+     */
+    public static Set<String> parse(String fields, UserSort sort) {
+        if (fields == null || fields.isBlank()) return null;
+        Set<String> selected = new TreeSet<>();
+        for (String field : fields.split(",")) {
+            String name = field.trim();
+            if (name.isEmpty()) continue;
+            if (!FIELDS.contains(name)) throw new IllegalArgumentException("Unknown field '" + name + "'");
+            selected.add(name);
+        }
+        selected.add("id");
+        if (sort.property() != null) selected.add(sort.property());
+        return selected;
+    }
+}
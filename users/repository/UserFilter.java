@@ -0,0 +1,57 @@
+package com.trademarket.api.security.users.repository;
+
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import com.trademarket.api.security.users.addresses.repository.AddressMatch;
+
+/**
+ * The filter parameters shared by the users listing, its count and its facets.
+ * {@link Shape} is what the generated SQL depends on (which filters are present), the values are only ever bound.
+ */
+public record UserFilter(String search, String country, String city, String region, String street) {
+
+    public record Shape(boolean hasSearch, boolean hasCountry, boolean hasCity, boolean hasRegion, boolean hasStreet) {
+        public boolean hasAddressFilter() { return hasCountry || hasCity || hasRegion || hasStreet; }
+
+        /* the listing's WHERE minus paging, over a "users" table alias; shared by the page query, the count and the facets */
+        public void appendWhere(StringBuilder sql, boolean hasWhere) {
+            if (hasSearch) {
+                sql.append(hasWhere ? " AND " : " WHERE ")
+                    // search_document = username + profile first/last name, trigger maintained and GIN indexed (see migrations)
+                    .append(" users.search_document @@ to_tsquery('simple', :searchQuery || ':*') ");
+                hasWhere = true;
+            }
+            if (hasAddressFilter()) {
+                sql.append(hasWhere ? " AND " : " WHERE ")
+                    .append(" EXISTS (SELECT 1 FROM addresses WHERE addresses.user_id = users.id");
+                appendAddressPredicates(sql);
+                sql.append(") ");
+            }
+        }
+
+        // a user with several addresses is matched once, and the addresses listed with it are the ones that match
+        public void appendAddressPredicates(StringBuilder sql) {
+            if (hasCountry) sql.append(" AND").append(AddressMatch.CONTAINS.predicate("addresses.country", "country"));
+            if (hasCity) sql.append(" AND").append(AddressMatch.CONTAINS.predicate("addresses.city", "city"));
+            if (hasRegion) sql.append(" AND").append(AddressMatch.CONTAINS.predicate("addresses.region", "region"));
+            if (hasStreet) sql.append(" AND").append(AddressMatch.CONTAINS.predicate("addresses.street", "street"));
+        }
+    }
+
+    public Shape shape() {
+        return new Shape(present(search), present(country), present(city), present(region), present(street));
+    }
+
+    public DatabaseClient.GenericExecuteSpec bind(DatabaseClient.GenericExecuteSpec spec) {
+        if (present(search)) spec = spec.bind("searchQuery", search);
+        if (present(country)) spec = spec.bind("country", country);
+        if (present(city)) spec = spec.bind("city", city);
+        if (present(region)) spec = spec.bind("region", region);
+        if (present(street)) spec = spec.bind("street", street);
+        return spec;
+    }
+
+    private static boolean present(String value) {
+        return value != null && !value.isBlank();
+    }
+}
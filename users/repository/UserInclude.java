@@ -0,0 +1,29 @@
+package com.trademarket.api.security.users.repository;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parts of a user that GET /users?include= can ask for. Each one is a join or an aggregation in the listing query,
+ * anything not included is neither generated in SQL nor mapped.
+ */
+public enum UserInclude {
+
+    PROFILE, ADDRESS, ROLES, PERMISSIONS;
+
+    /** null/absent means everything, as the listing always returned; include= (empty) means the user row only */
+    public static Set<UserInclude> parse(String include) {
+        if (include == null) return EnumSet.allOf(UserInclude.class);
+        EnumSet<UserInclude> parts = EnumSet.noneOf(UserInclude.class);
+        for (String part : include.split(",")) {
+            if (part.isBlank()) continue;
+            try {
+                parts.add(valueOf(part.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown include '" + part.trim() + "', expected profile, address, roles or permissions");
+            }
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,70 @@
+package com.trademarket.api.security.users.repository;
+
+import java.time.Instant;
+import java.util.function.Function;
+
+import com.trademarket.api.security.users.model.UserEntity;
+import com.trademarket.api.security.users.profiles.model.ProfileEntity;
+
+/**
+ * Whitelisted sortBy options for the users listing.
+ * Each sort key is never NULL in SQL (COALESCE) so the (sort_key, id) row comparison used by keyset paging
+ * can't silently drop rows, and {@link #keyOf(UserEntity)} reads back the exact same value from a mapped row.
+ */
+public enum UserSort {
+
+    ID("id", "id", "users.id", Long.class, UserEntity::getId),
+    CREATED_AT("created_at", "createdAt", "COALESCE(users.created_at, 'epoch'::timestamptz)", Instant.class,
+        user -> user.getCreatedAt() != null ? user.getCreatedAt() : Instant.EPOCH),
+    USERNAME("username", "username", "COALESCE(users.username, '')", String.class, user -> orEmpty(user.getUsername())),
+    EMAIL("email", "email", "COALESCE(users.email, '')", String.class, user -> orEmpty(user.getEmail())),
+    FIRSTNAME("firstname", null, "COALESCE(profiles.firstname, '')", String.class, user -> orEmpty(profile(user).getFirstname())),
+    LASTNAME("lastname", null, "COALESCE(profiles.lastname, '')", String.class, user -> orEmpty(profile(user).getLastname())),
+    FULLNAME("fullname", null, "(COALESCE(profiles.firstname, '') || ' ' || COALESCE(profiles.lastname, ''))", String.class,
+        user -> orEmpty(profile(user).getFirstname()) + " " + orEmpty(profile(user).getLastname()));
+
+    private final String param;
+    private final String property;
+    private final String expression;
+    private final Class<?> keyType;
+    private final Function<UserEntity, Object> keyExtractor;
+
+    UserSort(String param, String property, String expression, Class<?> keyType, Function<UserEntity, Object> keyExtractor) {
+        this.param = param;
+        this.property = property;
+        this.expression = expression;
+        this.keyType = keyType;
+        this.keyExtractor = keyExtractor;
+    }
+
+    public static UserSort from(String sortBy) {
+        if (sortBy == null || sortBy.isBlank()) return ID;
+        for (UserSort sort : values()) {
+            if (sort.param.equals(sortBy)) return sort;
+        }
+        return ID;
+    }
+
+    public String param() { return param; }
+    /** UserEntity property holding the key, null when the key lives on the profile */
+    public String property() { return property; }
+    public String expression() { return expression; }
+    public Class<?> keyType() { return keyType; }
+    public boolean isProfileSort() { return expression.contains("profiles."); }
+
+    public Object keyOf(UserEntity user) { return keyExtractor.apply(user); }
+
+    public Object parseKey(String key) {
+        if (keyType == Long.class) return Long.valueOf(key);
+        if (keyType == Instant.class) return Instant.parse(key);
+        return key;
+    }
+
+    private static ProfileEntity profile(UserEntity user) {
+        return user.getProfileEntity() != null ? user.getProfileEntity() : new ProfileEntity();
+    }
+
+    private static String orEmpty(String value) {
+        return value != null ? value : "";
+    }
+}
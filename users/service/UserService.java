@@ -5,14 +5,21 @@ import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
 import org.springframework.stereotype.Service;
 
-import com.trademarket.api.security.generics.CustomRepository;
 import com.trademarket.api.security.generics.CustomValidation;
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
 import com.trademarket.api.security.users.exception.UserNotFoundException;
+import com.trademarket.api.security.users.mapping.ConditionalUpdate;
 import com.trademarket.api.security.users.model.UserEntity;
+import com.trademarket.api.security.users.password.PasswordHashingExecutor;
 import com.trademarket.api.security.users.repository.UserRepository;
+import com.trademarket.api.security.users.sql.SqlTemplateCache;
+import com.trademarket.api.security.users.validation.IdentifierFilter;
+import com.trademarket.api.security.users.validation.UniquenessChecker;
 
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
@@ -22,16 +29,29 @@ public class UserService {
 
     private final UserRepository userRepository;
     private final CustomValidation<UserEntity> customValidation;
-    private final CustomRepository<UserEntity, Long> customRepository;//the way class type is passed for the log we could practice the same
-    private final PasswordEncoder passwordEncoder;
+    private final DatabaseClient databaseClient;
+    private final SqlTemplateCache sqlTemplates;
+    private final PasswordHashingExecutor passwordHashing;
+    private final InvalidationBus invalidationBus;
+    private final UniquenessChecker uniquenessChecker;
+    private final IdentifierFilter identifierFilter;
 
     private static final Logger log = LoggerFactory.getLogger(UserService.class);
 
-    public UserService(UserRepository userRepository, CustomValidation<UserEntity> customValidation, CustomRepository<UserEntity, Long> customRepository, PasswordEncoder passwordEncoder) {
+    // verification, activation and account state are server-managed; passwords only change through the password paths
+    ConditionalUpdate<UserEntity> userUpdate = ConditionalUpdate.of(UserEntity.class, "users", "id")
+        .without("createdAt", "password", "emailVerified", "mobileNumberVerified", "active",
+            "accountNonExpired", "accountNonLocked", "credentialsNonExpired", "expiryDate");
+
+    public UserService(UserRepository userRepository, CustomValidation<UserEntity> customValidation, DatabaseClient databaseClient, SqlTemplateCache sqlTemplates, PasswordHashingExecutor passwordHashing, InvalidationBus invalidationBus, UniquenessChecker uniquenessChecker, IdentifierFilter identifierFilter) {
         this.userRepository = userRepository;
         this.customValidation = customValidation;
-        this.customRepository = customRepository;
-        this.passwordEncoder = passwordEncoder;
+        this.databaseClient = databaseClient;
+        this.sqlTemplates = sqlTemplates;
+        this.passwordHashing = passwordHashing;
+        this.invalidationBus = invalidationBus;
+        this.uniquenessChecker = uniquenessChecker;
+        this.identifierFilter = identifierFilter;
     }
     
     public Mono<UserEntity> saveUser(UserEntity userEntity) { 
@@ -40,14 +60,29 @@ public class UserService {
                     if (userEntity.getEmail() != null) userEntity.setEmail(userEntity.getEmail().toLowerCase());
                     log.info("Validating user fields");
                     customValidation.validateAll(userEntity);
+                    return userEntity;
+                }).subscribeOn(Schedulers.boundedElastic())
+                .flatMap(validatedUserEntity -> {
+                    log.info("Checking username, email and mobile number are not taken");
+                    return uniquenessChecker.verify(validatedUserEntity.getUsername(), validatedUserEntity.getEmail(),
+                            validatedUserEntity.getMobileNumber(), validatedUserEntity.getId())
+                        .thenReturn(validatedUserEntity);
+                })
+                .flatMap(validatedUserEntity -> {
                     log.info("Encoding password");
-                    userEntity.setPassword(passwordEncoder.encode(userEntity.getPassword()));
+                    return passwordHashing.encode(validatedUserEntity.getPassword());
+                })
+                .map(encodedPassword -> {
+                    userEntity.setPassword(encodedPassword);
                     Instant now = Instant.now();
-                    if (userEntity.getId() == null) userEntity.setCreatedAt(now);
+                    if (userEntity.getId() == null) {
+                        userEntity.setCreatedAt(now);
+                        userEntity.setVersion(0L); // written explicitly so the response carries it, a null would be left out of the INSERT
+                    }
                     userEntity.setUpdatedAt(now);
                     userEntity.setAccessedAt(now);
                     return userEntity;
-                }).subscribeOn(Schedulers.boundedElastic())
+                })
                 .flatMap(validatedUserEntity -> {
                     if (validatedUserEntity.getId() == null) {
                         log.info("Persisting new user");
@@ -56,40 +91,44 @@ public class UserService {
                         log.info("Updating existing user with id ", validatedUserEntity.getId());
                         return userRepository.findById(validatedUserEntity.getId())
                             .switchIfEmpty(Mono.error(new UserNotFoundException("User with id " + validatedUserEntity.getId() + " not found")))
-                            .flatMap(_ -> { return userRepository.save(validatedUserEntity); });
+                            .flatMap(existingUser -> {
+                                // a whole-entity save replaces whatever is there, still a new version for If-Match holders
+                                validatedUserEntity.setVersion(existingUser.getVersion() + 1);
+                                return userRepository.save(validatedUserEntity);
+                            });
                     }
-                });
+                })
+                .onErrorMap(DataIntegrityViolationException.class, UniquenessChecker::conflictOf)
+                .doOnNext(savedUserEntity -> identifierFilter.add(savedUserEntity.getUsername(), savedUserEntity.getEmail(), savedUserEntity.getMobileNumber()))
+                .flatMap(savedUserEntity -> invalidationBus.publish(InvalidationEvent.Type.USER, savedUserEntity.getId()).thenReturn(savedUserEntity));
     }
 
-    public Mono<Object> updateUser(Long id, Map<String, Object> updates) {
+    /**
+     * No read first: the update itself is the existence (and, given a version, the staleness) check.
+     * @param version the version the client last saw, null for an unconditional update
+     * @return {@link UserNotFoundException} if there is no such user, VersionConflictException if it changed since version
+     */
+    public Mono<UserEntity> updateUser(Long id, Long version, Map<String, Object> updates) {
         updates.put("updatedAt", Instant.now());
         updates.put("accessedAt", Instant.now());
-        log.info("Verifying user exists with id " + id);
-        return userRepository.findById(id)
-            //.switchIfEmpty(Mono.error(new ValidationException(Map.of("id", "User not found"))))
+        return Mono.fromCallable(() -> {
+                log.info("Validating user fields");
+                customValidation.validate(new UserEntity(), updates);
+                return updates;
+            })
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMap(_ -> uniquenessChecker.verify(stringValue(updates, "username"), stringValue(updates, "email"), stringValue(updates, "mobileNumber"), id))
+            .then(Mono.defer(() -> {
+                log.info("Updating user fields of user {} at version {}", id, version);
+                return userUpdate.execute(databaseClient, sqlTemplates, id, version, updates);
+            }))
+            .onErrorMap(DataIntegrityViolationException.class, UniquenessChecker::conflictOf)
             .switchIfEmpty(Mono.error(new UserNotFoundException("User with id " + id + " not found")))
-            .flatMap(existingUser -> 
-                Mono.fromCallable(() -> {
-                    log.info("Validating user fields");
-                    customValidation.validate(new UserEntity(), updates);
-                    return existingUser;
-                })
-                .subscribeOn(Schedulers.boundedElastic())
-                .flatMap(_ -> {
-                    if (updates.containsKey("password")) {
-                        Object passwordObj = updates.get("password");
-                        if (passwordObj instanceof String string) {
-                            String password = string.trim();
-                            if (!password.isEmpty()) {
-                                log.info("Encoding password");
-                                String encodedPassword = passwordEncoder.encode(password);
-                                updates.put("password", encodedPassword);
-                            }
-                        } 
-                    }
-                    log.info("Updating user fields");
-                    return customRepository.updateFields(id, updates, UserEntity.class, existingUser);
-                })
-            );
+            .doOnNext(_ -> identifierFilter.add(stringValue(updates, "username"), stringValue(updates, "email"), stringValue(updates, "mobileNumber")))
+            .flatMap(updatedUser -> invalidationBus.publish(InvalidationEvent.Type.USER, id).thenReturn(updatedUser));
+    }
+
+    private static String stringValue(Map<String, Object> updates, String key) {
+        return updates.get(key) instanceof String value ? value : null;
     }
 }
\ No newline at end of file
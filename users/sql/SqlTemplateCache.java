@@ -0,0 +1,63 @@
+package com.trademarket.api.security.users.sql;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Builds each dynamically assembled statement once per query shape (which filters are present, sort, direction...)
+ * and hands back the very same String afterwards, so the driver's prepared statement cache sees a bounded set of
+ * statements instead of a new one per request.
+ * Shapes are value objects (records). Some carry request-dependent parts (the sparse fieldset of a list request, the
+ * properties a PATCH sets), so the cache is capped at MAXIMUM_SIZE; a shape evicted by a flood of rare ones is just rebuilt.
+ */
+@Component
+public class SqlTemplateCache {
+
+    private static final int MAXIMUM_SIZE = 2_000;
+
+    private final Cache<Object, String> templates = Caffeine.newBuilder()
+        .maximumSize(MAXIMUM_SIZE)
+        .build();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public SqlTemplateCache(ObjectProvider<MeterRegistry> meterRegistry) {
+        meterRegistry.ifAvailable(registry -> {
+            FunctionCounter.builder("users.sql.templates.hits", hits, LongAdder::sum)
+                .description("Dynamic SQL lookups served from an already built template")
+                .register(registry);
+            FunctionCounter.builder("users.sql.templates.misses", misses, LongAdder::sum)
+                .description("Dynamic SQL lookups that had to build a new template")
+                .register(registry);
+            Gauge.builder("users.sql.templates.size", templates, Cache::estimatedSize)
+                .description("Distinct query shapes, size the driver's prepared statement cache to at least this")
+                .register(registry);
+        });
+    }
+
+    public String get(Object shape, Supplier<String> builder) {
+        String sql = templates.getIfPresent(shape);
+        if (sql != null) {
+            hits.increment();
+            return sql;
+        }
+        return templates.get(shape, _ -> {
+            misses.increment();
+            return builder.get();
+        });
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long size() { return templates.estimatedSize(); }
+}
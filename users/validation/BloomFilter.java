@@ -0,0 +1,85 @@
+package com.trademarket.api.security.users.validation;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size, thread-safe Bloom filter over strings: no false negatives, false positives at about the rate it was
+ * sized for as long as no more than {@code capacity} values are put. Values can't be removed, callers rebuild instead.
+ * The k bit positions come from double hashing one 64-bit hash (h1 + i * h2), which is as good as k independent hashes.
+ */
+final class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long bitSize;
+    private final int hashes;
+    private final long capacity;
+    private final LongAdder puts = new LongAdder();
+
+    private BloomFilter(long bitSize, int hashes, long capacity) {
+        this.words = new AtomicLongArray((int) ((bitSize + 63) >>> 6));
+        this.bitSize = bitSize;
+        this.hashes = hashes;
+        this.capacity = capacity;
+    }
+
+    /** optimal size for {@code capacity} values at {@code falsePositiveRate}: m = -n ln p / (ln 2)^2, k = m/n ln 2 */
+    static BloomFilter create(long capacity, double falsePositiveRate) {
+        long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        bits = Math.max(64, Math.min(bits, (long) Integer.MAX_VALUE << 6)); // AtomicLongArray is int indexed
+        int hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+        return new BloomFilter(bits, hashes, capacity);
+    }
+
+    void put(String value) {
+        long hash = hash(value);
+        long h1 = (int) hash;
+        long h2 = hash >>> 32;
+        for (int i = 1; i <= hashes; i++) {
+            long bit = index(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current = words.get(word);
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask)) {
+                current = words.get(word);
+            }
+        }
+        puts.increment();
+    }
+
+    boolean mightContain(String value) {
+        long hash = hash(value);
+        long h1 = (int) hash;
+        long h2 = hash >>> 32;
+        for (int i = 1; i <= hashes; i++) {
+            long bit = index(h1 + i * h2);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    long puts() { return puts.sum(); }
+    long capacity() { return capacity; }
+
+    /** puts / capacity, past 1.0 the false positive rate climbs quickly */
+    double fill() { return (double) puts.sum() / capacity; }
+
+    private long index(long combined) {
+        return (combined & Long.MAX_VALUE) % bitSize;
+    }
+
+    /** FNV-1a over the UTF-16 chars, finished with murmur3's fmix64 so both halves are usable */
+    private static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
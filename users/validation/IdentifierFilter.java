@@ -0,0 +1,190 @@
+package com.trademarket.api.security.users.validation;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+
+import com.trademarket.api.security.users.cache.InvalidationBus;
+import com.trademarket.api.security.users.cache.InvalidationEvent;
+import com.trademarket.api.security.users.cache.InvalidationListener;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * In-memory Bloom filter over every username, email (both lowercased) and mobile number in the users table.
+ * "Definitely not taken" answers skip the database; "might be taken" still has to be confirmed by a query.
+ *
+ * The filter is (re)built by streaming the users table whenever the {@link InvalidationBus} flushes, which it does
+ * right after its first LISTEN at startup and after every reconnect, since missed notifications could mean missed
+ * inserts. Until the first build completes every value "might be taken", so nothing is ever wrongly reported free.
+ * Writes on this node are added directly by UserService; USER events from other nodes re-read that user's values.
+ * Renamed or deleted values stay in the filter (they only cost a query) until the next rebuild, which also happens
+ * once more values were put than the filter was sized for.
+ */
+@Component
+public class IdentifierFilter implements InvalidationListener {
+
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final long MIN_CAPACITY = 100_000;
+    private static final int HEADROOM = 2; // size for twice the current values before a rebuild is needed
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    private static final Logger log = LoggerFactory.getLogger(IdentifierFilter.class);
+
+    private final DatabaseClient databaseClient;
+
+    private volatile BloomFilter filter; // null until the first build
+    private volatile BloomFilter building; // also receives puts while a build streams the table
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder queried = new LongAdder();
+
+    public IdentifierFilter(DatabaseClient databaseClient, ObjectProvider<MeterRegistry> meterRegistry) {
+        this.databaseClient = databaseClient;
+        meterRegistry.ifAvailable(registry -> {
+            FunctionCounter.builder("users.identifier_filter.skipped", skipped, LongAdder::sum)
+                .description("Uniqueness lookups answered as free without a database query")
+                .register(registry);
+            FunctionCounter.builder("users.identifier_filter.queried", queried, LongAdder::sum)
+                .description("Uniqueness lookups the filter could not rule out, confirmed by a query")
+                .register(registry);
+            Gauge.builder("users.identifier_filter.fill", this, f -> f.filter != null ? f.filter.fill() : 0)
+                .description("Values put / capacity of the current filter, rebuilt past 1.0")
+                .register(registry);
+        });
+    }
+
+    public boolean mightContainUsername(String username) {
+        return mightContain("u:", username, true);
+    }
+
+    public boolean mightContainEmail(String email) {
+        return mightContain("e:", email, true);
+    }
+
+    public boolean mightContainMobileNumber(String mobileNumber) {
+        return mightContain("m:", mobileNumber, false);
+    }
+
+    /** adds a user's current values, call once the write is committed */
+    public void add(String username, String email, String mobileNumber) {
+        // read building before filter: a build publishes filter first and clears building second,
+        // so seeing no build in progress means filter already is the new one
+        BloomFilter next = building;
+        BloomFilter current = filter;
+        if (current != null) put(current, username, email, mobileNumber);
+        if (next != null) put(next, username, email, mobileNumber);
+        if (current != null && next == null && current.fill() > 1.0) requestRebuild();
+    }
+
+    @Override
+    public void onInvalidation(InvalidationEvent event) {
+        if (event.type() != InvalidationEvent.Type.USER) return;
+        if (event.isAll()) {
+            requestRebuild();
+            return;
+        }
+        addUsers(List.of(event.id()));
+    }
+
+    /* users created in bulk elsewhere (imports): one read for the whole batch */
+    @Override
+    public void onInvalidation(InvalidationEvent.Batch batch) {
+        if (batch.type() == InvalidationEvent.Type.USER) addUsers(batch.ids());
+    }
+
+    @Override
+    public void onFlush() {
+        requestRebuild();
+    }
+
+    private void addUsers(List<Long> ids) {
+        databaseClient.sql("SELECT username, email, mobile_number FROM users WHERE id = ANY(:ids)")
+            .bind("ids", ids.toArray(Long[]::new))
+            .map((row, _) -> {
+                add(row.get("username", String.class), row.get("email", String.class), row.get("mobile_number", String.class));
+                return true;
+            })
+            .all()
+            .subscribe(null, e -> {
+                log.warn("Could not add {} users to the identifier filter, rebuilding: {}", ids.size(), e.getMessage());
+                requestRebuild();
+            });
+    }
+
+    /** one build at a time; a request arriving mid-build schedules exactly one more, since that build may be too old */
+    private void requestRebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            rebuildPending.set(true);
+            return;
+        }
+        rebuild()
+            .doFinally(_ -> {
+                building = null;
+                rebuilding.set(false);
+                if (rebuildPending.getAndSet(false)) requestRebuild();
+            })
+            .subscribe(null, e -> log.warn("Identifier filter build failed, keeping the previous one: {}", e.getMessage()));
+    }
+
+    private Mono<Void> rebuild() {
+        long started = System.nanoTime();
+        return databaseClient.sql("SELECT count(*) AS total FROM users")
+            .map((row, _) -> row.get("total", Long.class))
+            .one()
+            .flatMap(total -> {
+                BloomFilter next = BloomFilter.create(Math.max(MIN_CAPACITY, total * 3 * HEADROOM), FALSE_POSITIVE_RATE);
+                building = next; // from here on writes land in both filters, and the scan below sees everything before
+                return databaseClient.sql("SELECT username, email, mobile_number FROM users")
+                    .filter(statement -> statement.fetchSize(STREAM_FETCH_SIZE))
+                    .map((row, _) -> {
+                        put(next, row.get("username", String.class), row.get("email", String.class), row.get("mobile_number", String.class));
+                        return true;
+                    })
+                    .all()
+                    .then(Mono.fromRunnable(() -> {
+                        filter = next;
+                        log.info("Identifier filter built from {} users in {} ms", total, (System.nanoTime() - started) / 1_000_000);
+                    }));
+            });
+    }
+
+    private boolean mightContain(String namespace, String value, boolean caseInsensitive) {
+        BloomFilter current = filter;
+        // the database lowercases with its own collation; only trust Java's lowercasing for plain ASCII
+        if (value == null || current == null || (caseInsensitive && !isAscii(value))) return true;
+        boolean mightContain = current.mightContain(namespace + normalize(value, caseInsensitive));
+        if (mightContain) queried.increment();
+        else skipped.increment();
+        return mightContain;
+    }
+
+    private static void put(BloomFilter target, String username, String email, String mobileNumber) {
+        if (username != null) target.put("u:" + normalize(username, true));
+        if (email != null) target.put("e:" + normalize(email, true));
+        if (mobileNumber != null) target.put("m:" + normalize(mobileNumber, false));
+    }
+
+    private static String normalize(String value, boolean caseInsensitive) {
+        return caseInsensitive ? value.toLowerCase(Locale.ROOT) : value;
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7f) return false;
+        }
+        return true;
+    }
+}
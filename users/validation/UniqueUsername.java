@@ -1,20 +0,0 @@
-package com.trademarket.api.security.users.validation;
-
-import java.lang.annotation.Documented;
-import java.lang.annotation.ElementType;
-import java.lang.annotation.Retention;
-import java.lang.annotation.RetentionPolicy;
-import java.lang.annotation.Target;
-
-import jakarta.validation.Constraint;
-import jakarta.validation.Payload;
-
-@Documented
-@Constraint(validatedBy = UniqueUsernameConstraint.class)
-@Target({ElementType.FIELD, ElementType.METHOD, ElementType.ANNOTATION_TYPE})
-@Retention(RetentionPolicy.RUNTIME)
-public @interface UniqueUsername {
-    String message() default "Username already exists";
-    Class<?>[] groups() default {};
-    Class<? extends Payload>[] payload() default {};
-}
@@ -0,0 +1,116 @@
+package com.trademarket.api.security.users.validation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Component;
+
+import com.trademarket.api.exceptions.ValidationException;
+import com.trademarket.api.security.users.sql.SqlTemplateCache;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Checks username, email and mobile number for uniqueness in a single round trip, without blocking.
+ * Replaces the old @UniqueUsername/@UniqueEmail/@UniqueMobileNumber constraint validators, which each ran their own
+ * query and blocked the calling thread; all conflicts come back together so the client can fix them in one go.
+ * Username and email are compared case-insensitively, like saveUser stores them.
+ * Values the {@link IdentifierFilter} rules out are not queried at all, usually the whole check for a new signup.
+ * Another node's write only reaches the filter once its notification does, so writes also map a violation of the
+ * unique identifier indexes (V20261017_08) to the same response through {@link #conflictOf}.
+ */
+@Component
+public class UniquenessChecker {
+
+    private static final Map<String, Map.Entry<String, String>> UNIQUE_INDEXES = Map.of(
+        "users_username_lower_key", Map.entry("username", "Username already exists"),
+        "users_email_lower_key", Map.entry("email", "Email already exists"),
+        "users_mobile_number_key", Map.entry("mobileNumber", "Mobile number already exists"));
+
+    private final DatabaseClient databaseClient;
+    private final SqlTemplateCache sqlTemplateCache;
+    private final IdentifierFilter identifierFilter;
+
+    public UniquenessChecker(DatabaseClient databaseClient, SqlTemplateCache sqlTemplateCache, IdentifierFilter identifierFilter) {
+        this.databaseClient = databaseClient;
+        this.sqlTemplateCache = sqlTemplateCache;
+        this.identifierFilter = identifierFilter;
+    }
+
+    private record Shape(boolean hasUsername, boolean hasEmail, boolean hasMobileNumber, boolean excludesId) {}
+
+    /**
+     * @param excludeId the user being updated, so it does not conflict with itself; null for new users
+     * @return field -> message for every value already taken by another user, empty when there is no conflict
+     */
+    public Mono<Map<String, String>> conflicts(String username, String email, String mobileNumber, Long excludeId) {
+        Shape shape = new Shape(
+            !isBlank(username) && identifierFilter.mightContainUsername(username),
+            !isBlank(email) && identifierFilter.mightContainEmail(email),
+            !isBlank(mobileNumber) && identifierFilter.mightContainMobileNumber(mobileNumber),
+            excludeId != null);
+        if (!shape.hasUsername() && !shape.hasEmail() && !shape.hasMobileNumber()) return Mono.just(Map.of());
+
+        DatabaseClient.GenericExecuteSpec spec = databaseClient.sql(sqlTemplateCache.get(shape, () -> buildSql(shape)));
+        if (shape.hasUsername()) spec = spec.bind("username", username);
+        if (shape.hasEmail()) spec = spec.bind("email", email);
+        if (shape.hasMobileNumber()) spec = spec.bind("mobileNumber", mobileNumber);
+        if (shape.excludesId()) spec = spec.bind("excludeId", excludeId);
+
+        return spec
+            .map((row, _) -> {
+                Map<String, String> conflicts = new LinkedHashMap<>();
+                if (shape.hasUsername() && Boolean.TRUE.equals(row.get("username_taken", Boolean.class))) conflicts.put("username", "Username already exists");
+                if (shape.hasEmail() && Boolean.TRUE.equals(row.get("email_taken", Boolean.class))) conflicts.put("email", "Email already exists");
+                if (shape.hasMobileNumber() && Boolean.TRUE.equals(row.get("mobile_number_taken", Boolean.class))) conflicts.put("mobileNumber", "Mobile number already exists");
+                return conflicts;
+            })
+            .one()
+            .defaultIfEmpty(Map.of());
+    }
+
+    /** Same as {@link #conflicts} but errors with a ValidationException listing every conflict */
+    public Mono<Void> verify(String username, String email, String mobileNumber, Long excludeId) {
+        return conflicts(username, email, mobileNumber, excludeId)
+            .flatMap(conflicts -> conflicts.isEmpty() ? Mono.<Void>empty() : Mono.error(new ValidationException(conflicts)));
+    }
+
+    /** for onErrorMap on user writes: a value taken after the check becomes a ValidationException, anything else stays as is */
+    public static Throwable conflictOf(DataIntegrityViolationException e) {
+        String message = e.getMostSpecificCause().getMessage();
+        if (message == null) return e;
+        for (Map.Entry<String, Map.Entry<String, String>> index : UNIQUE_INDEXES.entrySet()) {
+            if (message.contains(index.getKey())) {
+                return new ValidationException(Map.of(index.getValue().getKey(), index.getValue().getValue()));
+            }
+        }
+        return e;
+    }
+
+    private static String buildSql(Shape shape) {
+        StringBuilder select = new StringBuilder("SELECT ");
+        StringBuilder where = new StringBuilder();
+        if (shape.hasUsername()) {
+            select.append("bool_or(LOWER(username) = LOWER(:username)) AS username_taken, ");
+            where.append("LOWER(username) = LOWER(:username)");
+        }
+        if (shape.hasEmail()) {
+            select.append("bool_or(LOWER(email) = LOWER(:email)) AS email_taken, ");
+            where.append(where.isEmpty() ? "" : " OR ").append("LOWER(email) = LOWER(:email)");
+        }
+        if (shape.hasMobileNumber()) {
+            select.append("bool_or(mobile_number = :mobileNumber) AS mobile_number_taken, ");
+            where.append(where.isEmpty() ? "" : " OR ").append("mobile_number = :mobileNumber");
+        }
+        select.setLength(select.length() - 2);
+        select.append(" FROM users WHERE (").append(where).append(")");
+        if (shape.excludesId()) select.append(" AND id <> :excludeId");
+        return select.toString();
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+}